@@ -0,0 +1,26 @@
+package com.ldw.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 运行基准测试, 参数与 JMH 命令行相同.
+ * <p>
+ * 总是附带 gc profiler, 结果中的 gc.alloc.rate.norm 是每次操作分配的字节数;
+ * 结果同时以 JSON 写入 jmh-result.json, 便于和之前的结果比较.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(cmd.getResult().orElse("jmh-result.json"))
+                .build()).run();
+    }
+}
@@ -0,0 +1,104 @@
+package com.ldw.benchmarks;
+
+import com.ldw.structures.btree.BPlusTreeConfig;
+import com.ldw.structures.store.BlockStore;
+import com.ldw.structures.store.ChannelBlockStore;
+import com.ldw.structures.store.CompressedBlockStore;
+import com.ldw.structures.store.FileBlockStore;
+import com.ldw.structures.store.WriteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 块存储的随机读写, 不经过树和节点缓存. datasetSize 是文件中的块数.
+ * pageCompression 为 true 时在 storeType 之上包装 CompressedBlockStore, 块内容除前 8 个字节外全为 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockStoreBenchmark {
+
+    @Param({"4096", "16384"})
+    public int pageSize;
+
+    @Param({"MMAP", "CHANNEL"})
+    public BPlusTreeConfig.StoreType storeType;
+
+    @Param({"10000", "100000"})
+    public int datasetSize;
+
+    @Param({"false", "true"})
+    public boolean pageCompression;
+
+    private File file;
+
+    private BlockStore storage;
+
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("bench", ".data");
+        final int sectors = pageCompression ? CompressedBlockStore.SECTORS_PER_BLOCK : 1;
+        if (storeType == BPlusTreeConfig.StoreType.CHANNEL) {
+            storage = new ChannelBlockStore(file, pageSize / sectors, BPlusTreeConfig.DEFAULT_BUFFER_POOL_SIZE * sectors);
+        } else {
+            storage = new FileBlockStore(file, pageSize / sectors);
+        }
+        if (pageCompression) {
+            storage = new CompressedBlockStore(storage, new File(file.getPath() + ".ptt"), pageSize);
+        }
+        if (!storage.open()) {
+            throw new IOException("can not open " + file);
+        }
+        for (int i = 0; i < datasetSize; i++) {
+            WriteBuffer wbuf = storage.set(i);
+            wbuf.buf().putLong(0, i);
+            wbuf.save();
+        }
+        storage.sync();
+        random = new SplittableRandom(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.delete();
+    }
+
+    @Benchmark
+    public long randomRead() {
+        int index = random.nextInt(datasetSize);
+        ByteBuffer buf = storage.get(index);
+        long value = buf.getLong(0);
+        storage.release(buf);
+        return value;
+    }
+
+    @Benchmark
+    public void randomWrite() {
+        int index = random.nextInt(datasetSize);
+        WriteBuffer wbuf = storage.set(index);
+        wbuf.buf().putLong(0, index);
+        wbuf.save();
+    }
+}
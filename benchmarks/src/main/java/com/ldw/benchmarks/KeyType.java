@@ -0,0 +1,53 @@
+package com.ldw.benchmarks;
+
+import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.holders.LongHolder;
+import com.ldw.structures.holders.StringHolder;
+
+/**
+ * 基准测试使用的 key 类型, 由一个 64 位整数生成 key
+ */
+public enum KeyType {
+
+    /**
+     * 16 位十六进制字符串, 字典序与无符号整数顺序一致
+     */
+    STRING(StringHolder.class, 4 + 16) {
+        @Override
+        public DataHolder<?> key(long raw) {
+            String hex = Long.toHexString(raw);
+            return StringHolder.valueOf(ZEROS.substring(hex.length()) + hex);
+        }
+    },
+
+    /**
+     * 定长 long, 节点以 long[] 保存
+     */
+    LONG(LongHolder.class, LongHolder.BYTE_LENGTH) {
+        @Override
+        public DataHolder<?> key(long raw) {
+            return LongHolder.valueOf(raw);
+        }
+    };
+
+    private static final String ZEROS = "0000000000000000";
+
+    private final Class<? extends DataHolder<?>> holderClass;
+
+    private final int maxKeySize;
+
+    KeyType(Class<? extends DataHolder<?>> holderClass, int maxKeySize) {
+        this.holderClass = holderClass;
+        this.maxKeySize = maxKeySize;
+    }
+
+    public abstract DataHolder<?> key(long raw);
+
+    public Class<? extends DataHolder<?>> holderClass() {
+        return holderClass;
+    }
+
+    public int maxKeySize() {
+        return maxKeySize;
+    }
+}
@@ -0,0 +1,26 @@
+package com.ldw.benchmarks;
+
+/**
+ * 由序号生成 key 的原始值.
+ * <p>
+ * 随机 key 是序号经过 splitmix64 混洗后的值, 落在 [0, 2^62) 上; 顺序 key 从 2^62 开始递增,
+ * 比所有随机 key 都大, 有符号和无符号比较的结果一致.
+ */
+public final class Keys {
+
+    public static final long SEQUENTIAL_BASE = 1L << 62;
+
+    private Keys() {
+    }
+
+    public static long random(long id) {
+        long z = id + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (z ^ (z >>> 31)) >>> 2;
+    }
+
+    public static long sequential(long id) {
+        return SEQUENTIAL_BASE + id;
+    }
+}
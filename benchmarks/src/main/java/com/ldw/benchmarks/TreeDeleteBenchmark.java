@@ -0,0 +1,78 @@
+package com.ldw.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 删除为主的混合负载: 每次操作以 deletePercent 的概率删除最早插入的 key, 否则插入一个新 key.
+ * 序号经过混洗, 删除的位置在 key 空间中是随机的. 剩余元素少于 datasetSize 的 1/10 时只插入,
+ * 避免一次迭代内把树删空.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class TreeDeleteBenchmark {
+
+    @Param({"4096", "16384"})
+    public int pageSize;
+
+    @Param({"STRING", "LONG"})
+    public KeyType keyType;
+
+    @Param({"100000", "1000000"})
+    public int datasetSize;
+
+    @Param({"50", "90"})
+    public int deletePercent;
+
+    private TreeFixture fixture;
+
+    private SplittableRandom random;
+
+    private long oldest;
+
+    private long next;
+
+    private long floor;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        fixture = new TreeFixture(pageSize, keyType);
+        fixture.load(datasetSize);
+        random = new SplittableRandom(42);
+        oldest = 0;
+        next = datasetSize;
+        floor = datasetSize / 10;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean deleteMix() {
+        if (next - oldest > floor && random.nextInt(100) < deletePercent) {
+            return fixture.tree.remove(keyType.key(Keys.random(oldest++)));
+        }
+        return fixture.tree.put(keyType.key(Keys.random(next++)), fixture.value);
+    }
+}
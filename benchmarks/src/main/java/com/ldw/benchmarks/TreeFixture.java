@@ -0,0 +1,86 @@
+package com.ldw.benchmarks;
+
+import com.ldw.structures.btree.BPlusTreeConfig;
+import com.ldw.structures.btree.BPlusTreeFile;
+import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.holders.StringHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 在临时文件上创建并预先装载一棵树, 供各个基准测试共用
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class TreeFixture {
+
+    public static final int VALUE_SIZE = 4 + 16;
+
+    public final KeyType keyType;
+
+    public final BPlusTreeFile tree;
+
+    public final DataHolder value = StringHolder.valueOf("vvvvvvvvvvvvvvvv");
+
+    private final File base;
+
+    public TreeFixture(int pageSize, KeyType keyType) throws Exception {
+        this(pageSize, keyType, false);
+    }
+
+    public TreeFixture(int pageSize, KeyType keyType, boolean inPageSearch) throws Exception {
+        this(pageSize, keyType, inPageSearch, false);
+    }
+
+    public TreeFixture(int pageSize, KeyType keyType, boolean inPageSearch, boolean keyCompression) throws Exception {
+        this.keyType = keyType;
+        this.base = File.createTempFile("bench", "");
+        this.base.delete();
+        BPlusTreeConfig config = new BPlusTreeConfig()
+                .setBlockSize(pageSize)
+                .setMaxKeySize(keyType.maxKeySize())
+                .setMaxValueSize(VALUE_SIZE)
+                .setInPageSearch(inPageSearch)
+                .setKeyCompression(keyCompression);
+        this.tree = new BPlusTreeFile(base.getPath(), config, keyType.holderClass(), StringHolder.class);
+        if (!tree.open()) {
+            throw new IOException("can not open " + base);
+        }
+    }
+
+    /**
+     * 按 key 顺序批量装载序号 [0, count) 对应的随机 key
+     *
+     * @return 按序号排列的 key, 供查找使用
+     */
+    public DataHolder[] load(int count) {
+        DataHolder[] keys = new DataHolder[count];
+        List<Map.Entry<DataHolder, DataHolder>> entries = new ArrayList<Map.Entry<DataHolder, DataHolder>>(count);
+        for (int i = 0; i < count; i++) {
+            keys[i] = keyType.key(Keys.random(i));
+            entries.add(new AbstractMap.SimpleImmutableEntry<DataHolder, DataHolder>(keys[i], value));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<DataHolder, DataHolder>>() {
+            @Override
+            public int compare(Map.Entry<DataHolder, DataHolder> o1, Map.Entry<DataHolder, DataHolder> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        tree.bulkLoad(entries.iterator(), 1.0);
+        return keys;
+    }
+
+    public void close() {
+        tree.close();
+        new File(base.getPath() + ".data").delete();
+        new File(base.getPath() + ".free").delete();
+        new File(base.getPath() + ".wal").delete();
+        new File(base.getPath() + ".ptt").delete();
+    }
+}
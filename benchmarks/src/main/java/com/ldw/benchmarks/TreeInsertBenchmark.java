@@ -0,0 +1,68 @@
+package com.ldw.benchmarks;
+
+import com.ldw.structures.holders.DataHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向预先装载了 datasetSize 个元素的树中插入新的 key, 分随机顺序和递增顺序两种
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class TreeInsertBenchmark {
+
+    @Param({"4096", "16384"})
+    public int pageSize;
+
+    @Param({"STRING", "LONG"})
+    public KeyType keyType;
+
+    @Param({"100000", "1000000"})
+    public int datasetSize;
+
+    private TreeFixture fixture;
+
+    private long next;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        fixture = new TreeFixture(pageSize, keyType);
+        fixture.load(datasetSize);
+        next = datasetSize;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean randomInsert() {
+        DataHolder key = keyType.key(Keys.random(next++));
+        return fixture.tree.put(key, fixture.value);
+    }
+
+    @Benchmark
+    public boolean sequentialInsert() {
+        DataHolder key = keyType.key(Keys.sequential(next++));
+        return fixture.tree.put(key, fixture.value);
+    }
+}
@@ -0,0 +1,79 @@
+package com.ldw.benchmarks;
+
+import com.ldw.structures.holders.DataHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 点查找, key 按均匀分布或 Zipfian 分布选取, key 对象预先生成, 不计入分配.
+ * inPageSearch 为 true 时不在缓存中的节点直接在页上查找, keyCompression 为 true 时页内 key 压缩(此时 inPageSearch 不生效)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class TreeLookupBenchmark {
+
+    @Param({"4096", "16384"})
+    public int pageSize;
+
+    @Param({"STRING", "LONG"})
+    public KeyType keyType;
+
+    @Param({"100000", "1000000"})
+    public int datasetSize;
+
+    @Param({"false", "true"})
+    public boolean inPageSearch;
+
+    @Param({"false", "true"})
+    public boolean keyCompression;
+
+    private TreeFixture fixture;
+
+    private DataHolder[] keys;
+
+    private SplittableRandom random;
+
+    private ZipfianGenerator zipfian;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new TreeFixture(pageSize, keyType, inPageSearch, keyCompression);
+        keys = fixture.load(datasetSize);
+        random = new SplittableRandom(42);
+        zipfian = new ZipfianGenerator(datasetSize, new SplittableRandom(43));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object uniformLookup() {
+        return fixture.tree.getKey(keys[random.nextInt(datasetSize)]);
+    }
+
+    @Benchmark
+    public Object zipfianLookup() {
+        return fixture.tree.getKey(keys[(int) zipfian.next()]);
+    }
+}
@@ -0,0 +1,60 @@
+package com.ldw.benchmarks;
+
+import java.util.SplittableRandom;
+
+/**
+ * Zipfian 分布的序号生成器, 返回 [0, items) 之间的值, 0 最热.
+ * <p>
+ * 算法来自 Gray et al. "Quickly Generating Billion-Record Synthetic Databases".
+ */
+public class ZipfianGenerator {
+
+    public static final double DEFAULT_THETA = 0.99;
+
+    private final long items;
+
+    private final double theta;
+
+    private final double alpha;
+
+    private final double zetan;
+
+    private final double eta;
+
+    private final SplittableRandom random;
+
+    public ZipfianGenerator(long items, SplittableRandom random) {
+        this(items, DEFAULT_THETA, random);
+    }
+
+    public ZipfianGenerator(long items, double theta, SplittableRandom random) {
+        this.items = items;
+        this.theta = theta;
+        this.random = random;
+        double zeta2 = zeta(2, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.zetan = zeta(items, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+    }
+
+    public long next() {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        long ret = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(ret, items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
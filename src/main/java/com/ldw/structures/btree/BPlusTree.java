@@ -1,43 +1,232 @@
 package com.ldw.structures.btree;
 
 import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.holders.LongKeyHolder;
+import com.ldw.structures.metrics.Counter;
+import com.ldw.structures.metrics.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
 
 public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>> {
 
-    public static final int M = 3;
+    //节点头: pointer(long) + allocated + checksum + flags
+    protected static final int NODE_HEADER_SIZE = 20;
+    protected static final int ALLOCATED_OFFSET = 8;
+    //页校验和(CRC32C)在节点头中的偏移, 计算时这 4 个字节按 0 处理
+    protected static final int CHECKSUM_OFFSET = 12;
+    //节点类型标志, 叶子节点为 LEAF_FLAG
+    protected static final int FLAGS_OFFSET = 16;
+    protected static final int LEAF_FLAG = 1;
+    //叶子节点头: 额外的 leftPointer + rightPointer
+    protected static final int LEAF_HEADER_SIZE = NODE_HEADER_SIZE + 16;
+    //叶子页中 rightPointer 的偏移, 预读时不反序列化节点直接读它
+    protected static final int RIGHT_POINTER_OFFSET = NODE_HEADER_SIZE + 8;
+    //内部节点每个 child 的字节数
+    protected static final int CHILD_SIZE = 8;
+
+    protected final int BLOCK_SIZE;
+
+    protected final int maxKeySize;
+
+    protected final int maxValueSize;
+
+    //每个节点最多容纳的 key 个数, 达到后分裂. 开启 key 压缩时只是数组容量, 节点按页的实际大小分裂
+    protected final int leafOrder;
+
+    protected final int internalOrder;
+
+    //删除后节点至少保留的 key 个数, 低于它时借元素或合并
+    protected final int minLeafKeys;
+
+    protected final int minInternalKeys;
+
+    //key 压缩, 不压缩时为 null
+    private final KeyEncoding<K> keyEncoding;
 
-    protected int BLOCK_SIZE = 512;
+    //压缩页中一个元素最多占用的字节数
+    private final int maxLeafEntry;
+
+    private final int maxInternalEntry;
+
+    //压缩页删除后至少保留的字节数
+    private final int minPageBytes;
     //root pointer
-    protected int rootPointer;
+    protected long rootPointer;
 
-    protected int headPointer;
+    protected long headPointer;
 
-    protected int lastPointer;
+    protected long lastPointer;
 
     protected int elements = 0;
 
     protected int high = 0;
 
+    /**
+     * 读操作(getKey/游标)共享, 写操作(put/remove/bulkLoad/clear 以及存储层的 sync/close)独占.
+     * 节点对象在缓存中被所有线程共享并且会被写操作原地修改, 所以没有使用节点级的 latch.
+     */
+    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //每次有节点被修改或树被清空时加 1, 只在持有写锁时修改. 游标据此判断释放读锁期间叶子是否可能被改过
+    protected long modCount = 0;
+
     private final K factoryK;
 
     private final V factoryV;
 
-    public BPlusTree(Class<K> kType, Class<V> vType) throws IllegalAccessException, InstantiationException {
+    //key 可以映射为 long 时节点以 long[] 保存 key, 否则为 null
+    private final LongKeyHolder<K> longKeyCodec;
+
+    //getKey 是否直接在页上查找
+    protected final boolean inPageSearch;
+
+    //从存储读出的页是否检查校验和
+    protected final boolean verifyChecksums;
+
+    //顺序扫描时预读的叶子数, 0 表示不预读
+    protected final int readaheadLeaves;
+
+    //运行指标, 子类和存储层也登记在这里
+    protected final MetricsRegistry metrics = new MetricsRegistry();
+
+    protected final Counter getCount = metrics.counter("tree.get");
+    protected final Counter putCount = metrics.counter("tree.put");
+    protected final Counter removeCount = metrics.counter("tree.remove");
+    //getNode 的调用次数, 以及其中缓存未命中从页反序列化的次数
+    protected final Counter nodeGets = metrics.counter("node.get");
+    protected final Counter nodeLoads = metrics.counter("node.load");
+    //getKey 直接在页上查找的页数
+    protected final Counter pageSearches = metrics.counter("node.page.search");
+    //写出的节点页, 与 put/remove 次数之比就是写放大
+    protected final Counter nodeWrites = metrics.counter("node.write");
+    protected final Counter leafSplits = metrics.counter("split.leaf");
+    protected final Counter internalSplits = metrics.counter("split.internal");
+    protected final Counter merges = metrics.counter("merge");
+    protected final Counter redistributions = metrics.counter("redistribute");
+    //申请节点时复用的空闲块和在末尾追加的块
+    protected final Counter allocReused = metrics.counter("alloc.reused");
+    protected final Counter allocAppended = metrics.counter("alloc.appended");
+
+    public BPlusTree(BPlusTreeConfig config, Class<K> kType, Class<V> vType) throws IllegalAccessException, InstantiationException {
         this.factoryK = kType.newInstance();
         this.factoryV = vType.newInstance();
+        this.longKeyCodec = asLongKeyHolder(factoryK);
+        //压缩页没有 slot 目录, 不能在页上二分查找
+        this.inPageSearch = config.isInPageSearch() && !config.isKeyCompression();
+        this.verifyChecksums = config.isVerifyChecksums();
+        this.readaheadLeaves = config.getReadaheadLeaves();
+
+        this.BLOCK_SIZE = config.getBlockSize();
+        this.maxKeySize = config.getMaxKeySize() > 0 ? config.getMaxKeySize() : factoryK.byteLength();
+        this.maxValueSize = config.getMaxValueSize() > 0 ? config.getMaxValueSize() : factoryV.byteLength();
+        //叶子节点每个元素: key + value + 两个 slot 偏移; 内部节点每个元素: key + child + 一个 slot 偏移
+        int leaf = (BLOCK_SIZE - LEAF_HEADER_SIZE) / (maxKeySize + maxValueSize + 4);
+        int internal = (BLOCK_SIZE - NODE_HEADER_SIZE - CHILD_SIZE) / (maxKeySize + CHILD_SIZE + 2);
+        if (config.isKeyCompression()) {
+            this.keyEncoding = KeyEncoding.of(factoryK);
+            this.maxLeafEntry = maxKeySize + KeyEncoding.MAX_OVERHEAD + maxValueSize;
+            this.maxInternalEntry = maxKeySize + KeyEncoding.MAX_OVERHEAD + CHILD_SIZE;
+            //按字节数对半分裂时两边都要放得下
+            if ((BLOCK_SIZE - LEAF_HEADER_SIZE) / maxLeafEntry < 3 || (BLOCK_SIZE - NODE_HEADER_SIZE - CHILD_SIZE) / maxInternalEntry < 3) {
+                leaf = 0;
+            } else {
+                //按最小的元素估算容量, 最多为不压缩时的 8 倍
+                leaf = Math.min((BLOCK_SIZE - LEAF_HEADER_SIZE) / (KeyEncoding.MIN_KEY_BYTES + factoryV.byteLength()), leaf * 8);
+                internal = Math.min((BLOCK_SIZE - NODE_HEADER_SIZE - CHILD_SIZE) / (KeyEncoding.MIN_KEY_BYTES + CHILD_SIZE), internal * 8);
+            }
+            this.minPageBytes = (int) (BLOCK_SIZE * config.getMinFillFactor());
+        } else {
+            this.keyEncoding = null;
+            this.maxLeafEntry = 0;
+            this.maxInternalEntry = 0;
+            this.minPageBytes = 0;
+        }
+        this.leafOrder = leaf;
+        this.internalOrder = internal;
+        if (leafOrder < 3 || internalOrder < 3) {
+            throw new IllegalArgumentException("blockSize " + BLOCK_SIZE + " too small for key size "
+                    + maxKeySize + " and value size " + maxValueSize);
+        }
+        //节点稳定时最多有 order - 1 个 key
+        this.minLeafKeys = Math.max(1, (int) ((leafOrder - 1) * config.getMinFillFactor()));
+        this.minInternalKeys = Math.max(1, (int) ((internalOrder - 1) * config.getMinFillFactor()));
+
+        metrics.gauge("tree.height", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return high;
+            }
+        });
+        metrics.gauge("tree.elements", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return elements;
+            }
+        });
+        metrics.gauge("tree.blocks", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return getHighestNodePointer();
+            }
+        });
     }
 
 
     //----------------------------  查找内容 -----------------------------//
-    abstract protected Node<K, V> getNode(int pointer);
+    abstract protected Node<K, V> getNode(long pointer);
+
+    /**
+     * 只从缓存中获取节点, 不在缓存中时返回 null
+     */
+    protected Node<K, V> getCachedNode(long pointer) {
+        return getNode(pointer);
+    }
+
+    /**
+     * 获取节点当前的页内容, 用完后需要 releasePage. 不支持时返回 null
+     */
+    protected ByteBuffer getPage(long pointer) {
+        return null;
+    }
+
+    /**
+     * 游标检测到顺序扫描时调用, 提示之后会依次读取从 pointer 开始沿 rightPointer 的 readaheadLeaves 个叶子.
+     * 调用时持有读锁, 实现不能阻塞. 默认什么都不做
+     */
+    protected void readahead(long pointer) {
+    }
 
+    protected void releasePage(ByteBuffer page) {
+    }
 
     public V getKey(K key) {
-        if (isEmpty() || key == null) {
+        if (key == null) {
             return null;
         }
 
+        getCount.inc();
+        lock.readLock().lock();
         try {
+            if (isEmpty()) {
+                return null;
+            }
+            if (inPageSearch) {
+                return getKeyInPage(key);
+            }
             LeafNode<K, V> node = findLeafNode(key);
             if (node == null) {
                 return null;
@@ -50,15 +239,68 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
             return null;
         } finally {
             releaseNodes();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 缓存中的节点直接使用, 其余的节点在页上二分查找, 只反序列化找到的 value
+     */
+    private V getKeyInPage(K key) {
+        long pointer = rootPointer;
+        while (true) {
+            Node<K, V> node = getCachedNode(pointer);
+            ByteBuffer page = null;
+            if (node == null) {
+                page = getPage(pointer);
+                if (page == null) {
+                    //不支持页内查找, 退回到节点查找
+                    node = getNode(pointer);
+                    if (node == null) {
+                        return null;
+                    }
+                }
+            }
+            if (node != null) {
+                int index = node.binarySearch(key);
+                if (node.isLeaf()) {
+                    return index >= 0 ? ((LeafNode<K, V>) node).values[index] : null;
+                }
+                pointer = ((InternalNode<K, V>) node).childs[index < 0 ? (-index) - 1 : index + 1];
+                continue;
+            }
+            try {
+                pageSearches.inc();
+                if (verifyChecksums) {
+                    Node.checkPage(page, pointer);
+                }
+                int index = Node.pageBinarySearch(page, key);
+                if (Node.isLeafPage(page)) {
+                    return index >= 0 ? LeafNode.pageValue(page, index, factoryV) : null;
+                }
+                pointer = InternalNode.pageChild(page, index < 0 ? (-index) - 1 : index + 1);
+            } finally {
+                releasePage(page);
+            }
         }
     }
 
     private final LeafNode<K, V> findLeafNode(K key) {
+        return findLeafNode(key, null);
+    }
+
+    /**
+     * 从根节点查找 key 所在的叶子节点, path 不为空时记录经过的内部节点及其 child 下标
+     */
+    protected final LeafNode<K, V> findLeafNode(K key, NodePath<K, V> path) {
         Node<K, V> node = getNode(rootPointer);
         while (!node.isLeaf()) {
             InternalNode<K, V> internalNode = (InternalNode<K, V>) node;
             int index = node.binarySearch(key);
             index = index < 0 ? (-index) - 1 : index + 1;
+            if (path != null) {
+                path.push(internalNode, index);
+            }
             node = getNode(internalNode.childs[index]);
             if (node == null) {
                 return null;
@@ -70,43 +312,145 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
     //-------------------------------------------------------------------//
 
 
+    //----------------------------  遍历内容 -----------------------------//
+    public Cursor<K, V> cursor() {
+        return new Cursor<K, V>(this);
+    }
+
+    /**
+     * 按升序遍历 [from, to) 范围内的元素, from/to 为 null 表示不限
+     */
+    public Iterator<Map.Entry<K, V>> scan(K from, K to) {
+        Cursor<K, V> cursor = cursor();
+        cursor.seek(from);
+        return new RangeIterator<K, V>(cursor, from, to, false);
+    }
+
+    /**
+     * 按降序遍历 [from, to) 范围内的元素, from/to 为 null 表示不限
+     */
+    public Iterator<Map.Entry<K, V>> scanDescending(K from, K to) {
+        Cursor<K, V> cursor = cursor();
+        if (to == null) {
+            cursor.last();
+        } else if (cursor.seek(to)) {
+            cursor.prev();
+        } else {
+            cursor.last();
+        }
+        return new RangeIterator<K, V>(cursor, from, to, true);
+    }
+
+    private static class RangeIterator<K extends DataHolder<K>, V extends DataHolder<V>>
+            implements Iterator<Map.Entry<K, V>> {
+        private final Cursor<K, V> cursor;
+        private final K from;
+        private final K to;
+        private final boolean descending;
+
+        RangeIterator(Cursor<K, V> cursor, K from, K to, boolean descending) {
+            this.cursor = cursor;
+            this.from = from;
+            this.to = to;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!cursor.isValid()) {
+                return false;
+            }
+            K key = cursor.key();
+            if (descending) {
+                return from == null || key.compareTo(from) >= 0;
+            }
+            return to == null || key.compareTo(to) < 0;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(cursor.key(), cursor.value());
+            if (descending) {
+                cursor.prev();
+            } else {
+                cursor.next();
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    //-------------------------------------------------------------------//
+
+
     //----------------------------  插入内容 -----------------------------//
     public boolean put(K key, V val) {
         if (key == null || val == null) {
             return false;
         }
+        if (key.byteLength() > maxKeySize || val.byteLength() > maxValueSize) {
+            throw new IllegalArgumentException("key or value too large: " + key);
+        }
+        lock.writeLock().lock();
         try {
             Node<K, V> splitNode;
             splitNode = putIterative(key, val);
 
             if (splitNode != null) {
-                InternalNode<K, V> newRootNode = createInternalNode();
-                newRootNode.allocPointer();
-
-                K newKey = splitNode.splitLeftShiftKeys();
-                putNode(splitNode);
-
-                newRootNode.childs[0] = rootPointer;
-                newRootNode.keys[0] = newKey;
-                newRootNode.childs[1] = splitNode.pointer;
-                newRootNode.allocated++;
-                putNode(newRootNode);
-
-                high++;
+                growRoot(splitNode);
             }
 
             elements++;
+            putCount.inc();
             return true;
         } finally {
             releaseNodes();
+            lock.writeLock().unlock();
         }
     }
 
+    private void growRoot(Node<K, V> splitNode) {
+        InternalNode<K, V> newRootNode = createInternalNode();
+        newRootNode.allocPointer();
+
+        K newKey = splitNode.splitLeftShiftKeys();
+        putNode(splitNode);
+
+        newRootNode.childs[0] = rootPointer;
+        newRootNode.setKey(0, newKey);
+        newRootNode.childs[1] = splitNode.pointer;
+        newRootNode.allocated++;
+        putNode(newRootNode);
+
+        rootPointer = newRootNode.pointer;
+        high++;
+    }
+
+    /**
+     * 插入到叶子节点, 并沿着查找路径向上传播分裂.
+     *
+     * @return 根节点分裂出的新节点, 根节点没有分裂时返回 null
+     */
     protected Node<K, V> putIterative(K key, V val) {
-        LeafNode<K, V> leafNode = findLeafNode(key);
+        NodePath<K, V> path = new NodePath<K, V>(high);
+        LeafNode<K, V> leafNode = findLeafNode(key, path);
         if (leafNode == null) {
             throw new RuntimeException("find leaf node is null : " + key);
         }
+        return insert(leafNode, path, key, val);
+    }
+
+    /**
+     * 插入到 path 末端的叶子节点, 分裂时会弹出 path 中的节点
+     */
+    private Node<K, V> insert(LeafNode<K, V> leafNode, NodePath<K, V> path, K key, V val) {
         //找到了重复的Key
         int index = leafNode.binarySearch(key);
         if (index >= 0) {
@@ -114,13 +458,338 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
         }
         //没有重复key直接插入
         index = (-index) - 1;
-        Node<K, V> splitNode = null;
         leafNode.add(index, key, val);
         putNode(leafNode);
-        //判断是不是要分裂
-        splitNode = leafNode.isFull() ? leafNode.split() : null;
+        return splitUpward(leafNode, path);
+    }
 
-        return splitNode;
+    /**
+     * 节点满了就分裂, 并沿着 path 向上传播, 分裂时会弹出 path 中的节点
+     *
+     * @return 根节点分裂出的新节点, 根节点没有分裂时返回 null
+     */
+    private Node<K, V> splitUpward(Node<K, V> node, NodePath<K, V> path) {
+        while (node.isFull()) {
+            Node<K, V> splitNode = node.split();
+            if (path.isEmpty()) {
+                return splitNode;
+            }
+            K newKey = splitNode.splitLeftShiftKeys();
+            putNode(splitNode);
+
+            int slot = path.slot();
+            InternalNode<K, V> parent = path.pop();
+            parent.add(slot, newKey, splitNode.pointer);
+            putNode(parent);
+            node = parent;
+        }
+        return null;
+    }
+
+    //-------------------------------------------------------------------//
+
+
+    //----------------------------  批量读写 -----------------------------//
+
+    /**
+     * 批量查找. key 排序后依次查找, 相邻的 key 共享查找路径, 落在同一个叶子节点的 key 只访问一次叶子
+     *
+     * @return 按 key 升序排列的找到的元素, 找不到的 key 不在结果中
+     */
+    public Map<K, V> getAll(Collection<K> keys) {
+        List<K> sorted = new ArrayList<K>(keys.size());
+        for (K key : keys) {
+            if (key != null) {
+                sorted.add(key);
+            }
+        }
+        Collections.sort(sorted);
+        Map<K, V> result = new LinkedHashMap<K, V>();
+
+        getCount.add(sorted.size());
+        lock.readLock().lock();
+        try {
+            if (isEmpty()) {
+                return result;
+            }
+            SortedSeeker seeker = new SortedSeeker();
+            for (K key : sorted) {
+                LeafNode<K, V> leaf = seeker.seek(key);
+                int index = leaf.binarySearch(key);
+                if (index >= 0) {
+                    result.put(key, leaf.values[index]);
+                }
+            }
+            return result;
+        } finally {
+            releaseNodes();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 批量插入. 相邻的 key 共享查找路径, 整个批次结束后修改过的节点只写一次.
+     * 遇到已经存在的 key 时和 put 一样抛出异常, 之前插入的元素保留
+     */
+    public void putAll(SortedMap<K, V> entries) {
+        List<Map.Entry<K, V>> sorted = new ArrayList<Map.Entry<K, V>>(entries.size());
+        boolean ordered = true;
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            K key = entry.getKey();
+            V val = entry.getValue();
+            if (key == null || val == null) {
+                throw new IllegalArgumentException("null key or value");
+            }
+            if (key.byteLength() > maxKeySize || val.byteLength() > maxValueSize) {
+                throw new IllegalArgumentException("key or value too large: " + key);
+            }
+            if (!sorted.isEmpty() && sorted.get(sorted.size() - 1).getKey().compareTo(key) > 0) {
+                ordered = false;
+            }
+            sorted.add(entry);
+        }
+        if (!ordered) {
+            //SortedMap 使用了别的 comparator
+            Collections.sort(sorted, new Comparator<Map.Entry<K, V>>() {
+                @Override
+                public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
+                    return o1.getKey().compareTo(o2.getKey());
+                }
+            });
+        }
+
+        lock.writeLock().lock();
+        try {
+            SortedSeeker seeker = new SortedSeeker();
+            for (Map.Entry<K, V> entry : sorted) {
+                LeafNode<K, V> leaf = seeker.seek(entry.getKey());
+                final int before = leaf.allocated;
+                Node<K, V> splitNode = insert(leaf, seeker.path, entry.getKey(), entry.getValue());
+                if (splitNode != null) {
+                    growRoot(splitNode);
+                }
+                elements++;
+                putCount.inc();
+                //插入后元素没有变多说明叶子分裂了
+                if (leaf.allocated <= before) {
+                    //树的结构变了, 下一个 key 从根重新查找
+                    seeker.reset();
+                }
+            }
+        } finally {
+            releaseNodes();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按升序查找 key 时复用上一次的查找路径.
+     * 路径上每个内部节点记录它负责的 key 范围的上界(不含), 下一个 key 只需从仍然包含它的最深的节点继续向下查找
+     */
+    private final class SortedSeeker {
+
+        final NodePath<K, V> path = new NodePath<K, V>(high);
+
+        //uppers.get(i) 是 path 中第 i 个节点的上界, null 表示没有上界
+        final List<K> uppers = new ArrayList<K>();
+
+        LeafNode<K, V> leaf;
+
+        K leafUpper;
+
+        LeafNode<K, V> seek(K key) {
+            if (leaf != null && (leafUpper == null || key.compareTo(leafUpper) < 0)) {
+                return leaf;
+            }
+            while (!path.isEmpty()) {
+                K upper = uppers.get(path.depth() - 1);
+                if (upper == null || key.compareTo(upper) < 0) {
+                    break;
+                }
+                path.pop();
+                uppers.remove(uppers.size() - 1);
+            }
+
+            Node<K, V> node;
+            K upper;
+            if (path.isEmpty()) {
+                node = getNode(rootPointer);
+                upper = null;
+            } else {
+                //栈顶节点重新选择 child
+                node = path.pop();
+                upper = uppers.remove(uppers.size() - 1);
+            }
+            while (!node.isLeaf()) {
+                InternalNode<K, V> internalNode = (InternalNode<K, V>) node;
+                int index = node.binarySearch(key);
+                index = index < 0 ? (-index) - 1 : index + 1;
+                path.push(internalNode, index);
+                uppers.add(upper);
+                if (index < internalNode.allocated) {
+                    upper = internalNode.key(index);
+                }
+                node = getNode(internalNode.childs[index]);
+            }
+            leaf = (LeafNode<K, V>) node;
+            leafUpper = upper;
+            return leaf;
+        }
+
+        void reset() {
+            path.clear();
+            uppers.clear();
+            leaf = null;
+            leafUpper = null;
+        }
+    }
+
+    //-------------------------------------------------------------------//
+
+
+    //----------------------------  批量加载 -----------------------------//
+
+    /**
+     * 从已按 key 升序排好的数据自底向上构建整棵树, 只能在空树上调用.
+     * 叶子节点按顺序申请并且每个节点只写一次, 叶子写完后再逐层构建内部节点.
+     *
+     * @param sorted     按 key 严格升序的数据
+     * @param fillFactor 每个节点的填充率, (0, 1]
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> sorted, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("invalid fillFactor: " + fillFactor);
+        }
+        lock.writeLock().lock();
+        try {
+            bulkLoadLocked(sorted, fillFactor);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void bulkLoadLocked(Iterator<? extends Map.Entry<K, V>> sorted, double fillFactor) {
+        if (!isEmpty() || !getNode(rootPointer).isLeaf()) {
+            releaseNodes();
+            throw new IllegalStateException("bulkLoad needs an empty tree");
+        }
+        //节点达到 order 个元素就会分裂, 所以最多只能填 order - 1 个
+        final int perLeaf = Math.max(1, Math.min(leafOrder - 1, (int) (leafOrder * fillFactor)));
+        //压缩页的叶子按字节数填充; 内部节点按最大的元素估算个数, 保证放得下
+        final int perLeafBytes = Math.min((int) (BLOCK_SIZE * fillFactor), BLOCK_SIZE - maxLeafEntry);
+        final int internalSlots = keyEncoding != null ? (BLOCK_SIZE - NODE_HEADER_SIZE - CHILD_SIZE) / maxInternalEntry : internalOrder;
+        final int perInternal = Math.max(2, Math.min(internalSlots - 1, (int) (internalSlots * fillFactor)));
+
+        List<K> firstKeys = new ArrayList<K>();
+        long[] pointers = new long[16];
+        int count = 0;
+
+        try {
+            //空的根节点直接作为第一个叶子节点
+            LeafNode<K, V> prev = null;
+            LeafNode<K, V> current = (LeafNode<K, V>) getNode(rootPointer);
+            int currentBytes = LEAF_HEADER_SIZE;
+            K lastKey = null;
+            while (sorted.hasNext()) {
+                Map.Entry<K, V> entry = sorted.next();
+                K key = entry.getKey();
+                V val = entry.getValue();
+                if (key == null || val == null) {
+                    throw new IllegalArgumentException("null key or value");
+                }
+                if (key.byteLength() > maxKeySize || val.byteLength() > maxValueSize) {
+                    throw new IllegalArgumentException("key or value too large: " + key);
+                }
+                if (lastKey != null && lastKey.compareTo(key) >= 0) {
+                    throw new IllegalArgumentException("keys not sorted: " + lastKey + " >= " + key);
+                }
+                lastKey = key;
+
+                if (current.allocated == perLeaf || (keyEncoding != null && currentBytes >= perLeafBytes)) {
+                    LeafNode<K, V> next = createLeafNode();
+                    next.allocPointer(current.pointer);
+                    current.rightPointer = next.pointer;
+                    next.leftPointer = current.pointer;
+                    //前一个叶子已经不会再变化, 写出去
+                    if (prev != null) {
+                        pointers = appendLevelEntry(firstKeys, pointers, prev);
+                        writeBulkNode(prev);
+                    }
+                    prev = current;
+                    current = next;
+                    currentBytes = LEAF_HEADER_SIZE;
+                }
+                current.add(current.allocated, key, val);
+                if (keyEncoding != null) {
+                    currentBytes += current.entryBytes(current.allocated - 1);
+                }
+                elements++;
+            }
+
+            //最后一个叶子太空时从前一个叶子匀一些过来
+            if (prev != null && current.allocated < perLeaf / 2) {
+                int move = (prev.allocated - current.allocated) / 2;
+                for (int i = 0; i < move; i++) {
+                    int from = prev.allocated - 1;
+                    current.add(0, prev.key(from), prev.values[from]);
+                    prev.remove(from);
+                }
+            }
+            if (prev != null) {
+                pointers = appendLevelEntry(firstKeys, pointers, prev);
+                writeBulkNode(prev);
+            }
+            pointers = appendLevelEntry(firstKeys, pointers, current);
+            writeBulkNode(current);
+            count = firstKeys.size();
+
+            headPointer = pointers[0];
+            lastPointer = current.pointer;
+            high = 1;
+
+            //逐层向上构建内部节点, 每层节点数预先算好并平均分配
+            while (count > 1) {
+                int nodes = (count + perInternal) / (perInternal + 1);
+                List<K> upperKeys = new ArrayList<K>(nodes);
+                long[] upperPointers = new long[nodes];
+                int child = 0;
+                for (int n = 0; n < nodes; n++) {
+                    int childs = (count - child) / (nodes - n);
+                    InternalNode<K, V> node = createInternalNode();
+                    node.allocPointer(pointers[child]);
+                    node.childs[0] = pointers[child];
+                    for (int i = 1; i < childs; i++) {
+                        node.add(i - 1, firstKeys.get(child + i), pointers[child + i]);
+                    }
+                    upperKeys.add(firstKeys.get(child));
+                    upperPointers[n] = node.pointer;
+                    writeBulkNode(node);
+                    child += childs;
+                }
+                firstKeys = upperKeys;
+                pointers = upperPointers;
+                count = nodes;
+                high++;
+            }
+            rootPointer = pointers[0];
+        } finally {
+            releaseNodes();
+        }
+    }
+
+    private long[] appendLevelEntry(List<K> firstKeys, long[] pointers, Node<K, V> node) {
+        int size = firstKeys.size();
+        if (size == pointers.length) {
+            pointers = Arrays.copyOf(pointers, size * 2);
+        }
+        pointers[size] = node.pointer;
+        firstKeys.add(node.allocated > 0 ? node.key(0) : null);
+        return pointers;
+    }
+
+    private void writeBulkNode(Node<K, V> node) {
+        putNode(node);
+        releaseNodes();
     }
 
     //-------------------------------------------------------------------//
@@ -132,13 +801,15 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
             return false;
         }
 
+        lock.writeLock().lock();
         try {
             if (removeIterative(key)) {
                 elements--;
+                removeCount.inc();
 
                 Node<K, V> rootNode = getNode(rootPointer);
                 //根节点只有一个children
-                if (rootNode.isEmpty() && elements > 0) {
+                if (rootNode.isEmpty() && !rootNode.isLeaf()) {
                     rootPointer = ((InternalNode<K, V>) rootNode).childs[0];
                     freeNode(rootNode);
                     high--;
@@ -147,31 +818,216 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
                 } else if (elements == 0 && (!rootNode.isLeaf() || !rootNode.isEmpty())) {
                     throw new RuntimeException("root is not empty but elements is zero");
                 }
+                return true;
             }
             return false;
         } finally {
             releaseNodes();
+            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * 从叶子节点删除, 并沿着查找路径向上处理下溢: 节点的 key 少于最小个数时,
+     * 能和兄弟节点放进一个节点就合并并释放右边的节点, 否则从兄弟节点借一半过来.
+     * 合并会使父节点少一个 key, 可能继续向上传播; 根节点不受限制, 空的内部根节点由 remove 收起.
+     */
     protected boolean removeIterative(K key) {
-        LeafNode<K, V> leafNode = findLeafNode(key);
+        NodePath<K, V> path = new NodePath<K, V>(high);
+        LeafNode<K, V> leafNode = findLeafNode(key, path);
 
         int index = leafNode.binarySearch(key);
-        if (index >= 0) {
-            leafNode.remove(index);
-            putNode(leafNode);
+        if (index < 0) {
+            return false;
+        }
+        leafNode.remove(index);
+        putNode(leafNode);
 
-            return true;
+        Node<K, V> node = leafNode;
+        while (!path.isEmpty() && isUnderflow(node)) {
+            int slot = path.slot();
+            InternalNode<K, V> parent = path.pop();
+            if (!rebalance(parent, slot)) {
+                //压缩页借元素后 parent 的 separator 变长, 可能放不下
+                if (keyEncoding != null) {
+                    Node<K, V> splitNode = splitUpward(parent, path);
+                    if (splitNode != null) {
+                        growRoot(splitNode);
+                    }
+                }
+                break;
+            }
+            node = parent;
+        }
+        return true;
+    }
+
+    private boolean isUnderflow(Node<K, V> node) {
+        if (keyEncoding != null) {
+            return node.isEmpty() || node.pageSize() < minPageBytes;
+        }
+        return node.allocated < (node.isLeaf() ? minLeafKeys : minInternalKeys);
+    }
+
+    /**
+     * 处理 parent.childs[slot] 的下溢, 优先和左兄弟配对
+     *
+     * @return 是否发生了合并(parent 少了一个 key)
+     */
+    private boolean rebalance(InternalNode<K, V> parent, int slot) {
+        if (parent.allocated == 0) {
+            return false;
+        }
+        //separator 是 left 和 right 之间的 key 下标
+        final int separator = slot > 0 ? slot - 1 : slot;
+        Node<K, V> left = getNode(parent.childs[separator]);
+        Node<K, V> right = getNode(parent.childs[separator + 1]);
+
+        if (left.isLeaf()) {
+            LeafNode<K, V> l = (LeafNode<K, V>) left;
+            LeafNode<K, V> r = (LeafNode<K, V>) right;
+            if (l.allocated + r.allocated < leafOrder && fitsMerged(l, null, separator, r)) {
+                mergeLeaves(parent, separator, l, r);
+                return true;
+            }
+            redistributeLeaves(parent, separator, l, r);
+        } else {
+            InternalNode<K, V> l = (InternalNode<K, V>) left;
+            InternalNode<K, V> r = (InternalNode<K, V>) right;
+            if (l.allocated + 1 + r.allocated < internalOrder && fitsMerged(l, parent, separator, r)) {
+                mergeInternals(parent, separator, l, r);
+                return true;
+            }
+            redistributeInternals(parent, separator, l, r);
         }
         return false;
     }
 
+    /**
+     * 压缩页合并后是否放得下. 内部节点合并时 parent 的 separator 会下移到两者之间
+     */
+    private boolean fitsMerged(Node<K, V> left, InternalNode<K, V> parent, int separator, Node<K, V> right) {
+        if (keyEncoding == null) {
+            return true;
+        }
+        int size = left.pageSize() + right.pageSize() - (left.isLeaf() ? LEAF_HEADER_SIZE : NODE_HEADER_SIZE);
+        Node<K, V> prev = left.isEmpty() ? null : left;
+        int prevIndex = left.allocated - 1;
+        if (parent != null) {
+            size += keyEncoding.keyBytes(prev, prevIndex, parent, separator);
+            prev = parent;
+            prevIndex = separator;
+        }
+        if (!right.isEmpty()) {
+            size += keyEncoding.keyBytes(prev, prevIndex, right, 0) - keyEncoding.keyBytes(null, -1, right, 0);
+        }
+        return size <= BLOCK_SIZE;
+    }
+
+    /**
+     * 压缩页借元素时是否把 from 的一个元素移到 to: from 比 to 大得多, 并且 to 一定放得下
+     */
+    private boolean shouldMove(Node<K, V> from, boolean last, Node<K, V> to, int maxEntry) {
+        if (from.allocated <= 1) {
+            return false;
+        }
+        final int toSize = to.pageSize();
+        final int entryBytes = from.entryBytes(last ? from.allocated - 1 : 0);
+        return from.pageSize() - toSize > entryBytes && toSize + maxEntry <= BLOCK_SIZE;
+    }
+
+    private void mergeLeaves(InternalNode<K, V> parent, int separator, LeafNode<K, V> left, LeafNode<K, V> right) {
+        for (int i = 0; i < right.allocated; i++) {
+            left.add(left.allocated, right.key(i), right.values[i]);
+        }
+        left.rightPointer = right.rightPointer;
+        if (right.rightPointer != 0) {
+            LeafNode<K, V> next = (LeafNode<K, V>) getNode(right.rightPointer);
+            next.leftPointer = left.pointer;
+            putNode(next);
+        }
+        if (lastPointer == right.pointer) {
+            lastPointer = left.pointer;
+        }
+        parent.removeWithRightChild(separator);
+        putNode(left);
+        putNode(parent);
+        freeNode(right);
+        merges.inc();
+    }
+
+    private void redistributeLeaves(InternalNode<K, V> parent, int separator, LeafNode<K, V> left, LeafNode<K, V> right) {
+        final int target = (left.allocated + right.allocated) / 2;
+        final boolean bySize = keyEncoding != null;
+        while (bySize ? shouldMove(left, true, right, maxLeafEntry)
+                : left.allocated > target + 1 || (left.allocated > target && right.allocated < target)) {
+            int last = left.allocated - 1;
+            right.add(0, left.key(last), left.values[last]);
+            left.remove(last);
+        }
+        while (bySize ? shouldMove(right, false, left, maxLeafEntry)
+                : right.allocated > target + 1 || (right.allocated > target && left.allocated < target)) {
+            left.add(left.allocated, right.key(0), right.values[0]);
+            right.remove(0);
+        }
+        parent.setKey(separator, right.key(0));
+        putNode(left);
+        putNode(right);
+        putNode(parent);
+        redistributions.inc();
+    }
+
+    private void mergeInternals(InternalNode<K, V> parent, int separator, InternalNode<K, V> left, InternalNode<K, V> right) {
+        left.add(left.allocated, parent.key(separator), right.childs[0]);
+        for (int i = 0; i < right.allocated; i++) {
+            left.add(left.allocated, right.key(i), right.childs[i + 1]);
+        }
+        parent.removeWithRightChild(separator);
+        putNode(left);
+        putNode(parent);
+        freeNode(right);
+        merges.inc();
+    }
+
+    /**
+     * 内部节点经由父节点的 separator 轮转 key 和 child
+     */
+    private void redistributeInternals(InternalNode<K, V> parent, int separator, InternalNode<K, V> left, InternalNode<K, V> right) {
+        final int target = (left.allocated + right.allocated) / 2;
+        final boolean bySize = keyEncoding != null;
+        while (bySize ? shouldMove(left, true, right, maxInternalEntry)
+                : left.allocated > target + 1 || (left.allocated > target && right.allocated < target)) {
+            int last = left.allocated - 1;
+            right.add(0, parent.key(separator), right.childs[0]);
+            right.childs[0] = left.childs[last + 1];
+            parent.setKey(separator, left.key(last));
+            left.removeWithRightChild(last);
+        }
+        while (bySize ? shouldMove(right, false, left, maxInternalEntry)
+                : right.allocated > target + 1 || (right.allocated > target && left.allocated < target)) {
+            left.add(left.allocated, parent.key(separator), right.childs[0]);
+            parent.setKey(separator, right.key(0));
+            right.remove(0);
+        }
+        putNode(left);
+        putNode(right);
+        putNode(parent);
+        redistributions.inc();
+    }
+
     //-------------------------------------------------------------------//
 
 
     //----------------------------  创建节点 -----------------------------//
-    public abstract int allocNode(boolean isLeaf);
+    public long allocNode(boolean isLeaf) {
+        return allocNode(isLeaf, 0);
+    }
+
+    /**
+     * 申请一个节点, 尽量靠近 nearPointer 所在的块, 让相邻节点在文件中也相邻.
+     * pointer 就是块号, 节点类型记录在页头中
+     */
+    public abstract long allocNode(boolean isLeaf, long nearPointer);
 
     protected InternalNode<K, V> createInternalNode() {
         return new InternalNode<K, V>(this);
@@ -183,6 +1039,8 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
         Node<K, V> node = createLeafNode();
         node.allocPointer();
         rootPointer = node.pointer;
+        headPointer = node.pointer;
+        lastPointer = node.pointer;
         high = 1;
         elements = 0;
         putNode(node);
@@ -203,8 +1061,13 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
     protected abstract boolean clearStorage();
 
     public void clear() {
-        if (clearStorage()) {
-            clearStates();
+        lock.writeLock().lock();
+        try {
+            if (clearStorage()) {
+                clearStates();
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -214,16 +1077,105 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
 
     //-------------------------------------------------------------------//
 
+    //----------------------------  移动节点 -----------------------------//
 
-    protected abstract int getHighestNodePointer();
+    /**
+     * 把节点移动到 newPointer, 并修正父节点, 左右兄弟, root/head/last 中指向它的指针.
+     * 父节点通过节点的第一个 key 从根查找, 空的非根节点找不到父节点, 返回 false 且不做任何修改
+     */
+    protected boolean relocateNode(Node<K, V> node, long newPointer) {
+        final long oldPointer = node.pointer;
+        InternalNode<K, V> parent = null;
+        int slot = -1;
+        if (oldPointer != rootPointer) {
+            if (node.isEmpty()) {
+                return false;
+            }
+            K key = node.key(0);
+            Node<K, V> current = getNode(rootPointer);
+            while (current.pointer != oldPointer) {
+                if (current.isLeaf()) {
+                    return false;
+                }
+                int index = current.binarySearch(key);
+                parent = (InternalNode<K, V>) current;
+                slot = index < 0 ? (-index) - 1 : index + 1;
+                current = getNode(parent.childs[slot]);
+            }
+        }
+
+        evictNode(oldPointer);
+        node.pointer = newPointer;
+        putNode(node);
+        if (parent != null) {
+            parent.childs[slot] = newPointer;
+            putNode(parent);
+        } else {
+            rootPointer = newPointer;
+        }
+
+        if (node.isLeaf()) {
+            LeafNode<K, V> leaf = (LeafNode<K, V>) node;
+            if (leaf.leftPointer != 0) {
+                LeafNode<K, V> left = (LeafNode<K, V>) getNode(leaf.leftPointer);
+                left.rightPointer = newPointer;
+                putNode(left);
+            }
+            if (leaf.rightPointer != 0) {
+                LeafNode<K, V> right = (LeafNode<K, V>) getNode(leaf.rightPointer);
+                right.leftPointer = newPointer;
+                putNode(right);
+            }
+            if (headPointer == oldPointer) {
+                headPointer = newPointer;
+            }
+            if (lastPointer == oldPointer) {
+                lastPointer = newPointer;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 节点移走之后丢弃旧位置上缓存的节点
+     */
+    protected abstract void evictNode(long pointer);
+
+    //-------------------------------------------------------------------//
+
+
+    protected abstract long getHighestNodePointer();
 
     public boolean isEmpty() {
         return elements == 0;
     }
 
 
-    public int getM() {
-        return M;
+    public int getLeafOrder() {
+        return leafOrder;
+    }
+
+    public int getInternalOrder() {
+        return internalOrder;
+    }
+
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    /**
+     * 这棵树的运行指标, 可以读取快照或注册为 JMX MBean
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public int getHigh() {
+        return high;
+    }
+
+    public int size() {
+        return elements;
     }
 
     protected K factoryK() {
@@ -234,4 +1186,24 @@ public abstract class BPlusTree<K extends DataHolder<K>, V extends DataHolder<V>
         return factoryV;
     }
 
+    protected boolean isLongKeys() {
+        return longKeyCodec != null;
+    }
+
+    protected LongKeyHolder<K> longKeyCodec() {
+        return longKeyCodec;
+    }
+
+    /**
+     * key 实现了 LongKeyHolder 时返回它自己, 否则返回 null. holder 总是实现 LongKeyHolder&lt;自身类型&gt;
+     */
+    @SuppressWarnings("unchecked")
+    static <K> LongKeyHolder<K> asLongKeyHolder(K factory) {
+        return factory instanceof LongKeyHolder ? (LongKeyHolder<K>) factory : null;
+    }
+
+    protected KeyEncoding<K> keyEncoding() {
+        return keyEncoding;
+    }
+
 }
@@ -0,0 +1,317 @@
+package com.ldw.structures.btree;
+
+/**
+ * B+树的可调参数, 需要在 open() 之前设置好
+ */
+public class BPlusTreeConfig {
+
+    /**
+     * 数据文件的读写方式
+     */
+    public enum StoreType {
+        //整段 mmap, 由操作系统的 page cache 缓存页
+        MMAP,
+        //FileChannel 定位读写, 使用固定大小的 direct buffer 池缓存页
+        CHANNEL
+    }
+
+    /**
+     * 写入什么时候落盘. 崩溃后能恢复到哪里取决于日志, 没有开启日志时只有 sync()/close() 之后的内容是完整的
+     */
+    public enum Durability {
+        //日志提交时只写入不 fsync, 进程崩溃不丢数据, 操作系统崩溃或掉电时可能丢失或损坏最近的批次
+        NONE,
+        //批次写满时提交, 另外由后台线程每隔 flushInterval 毫秒提交一次, 最多丢失这段时间内的写入
+        PERIODIC,
+        //批次写满或调用 commit() 时提交
+        ON_COMMIT_BATCH,
+        //每个写操作结束时提交, 返回之后写入已经落盘
+        SYNC_EACH_OP
+    }
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    public static final int MIN_BLOCK_SIZE = 512;
+
+    public static final int MAX_BLOCK_SIZE = 65536;
+
+    //页大小, 必须是 2 的幂
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    //key/value 序列化后的最大字节数, 0 表示使用定长 holder 自身的 byteLength()
+    private int maxKeySize = 0;
+
+    private int maxValueSize = 0;
+
+    public static final int DEFAULT_WAL_BATCH_SIZE = 256;
+
+    public static final long DEFAULT_WAL_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_BUFFER_POOL_SIZE = 1024;
+
+    public static final double DEFAULT_MIN_FILL_FACTOR = 0.4;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    public static final int DEFAULT_READAHEAD_LEAVES = 16;
+
+    private StoreType storeType = StoreType.MMAP;
+
+    //CHANNEL 方式下 buffer 池的页数
+    private int bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+
+    //数据文件每次映射的段大小, 必须是 2 的幂且不小于页大小
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    //是否开启预写日志, 开启后异常关闭的文件可以在 open() 时恢复
+    private boolean walEnabled = true;
+
+    //一个日志批次最多累积的页数, 达到后自动提交
+    private int walBatchSize = DEFAULT_WAL_BATCH_SIZE;
+
+    //日志文件超过这个字节数时, 提交之后自动做一次检查点并清空日志
+    private long walCheckpointSize = DEFAULT_WAL_CHECKPOINT_SIZE;
+
+    private Durability durability = Durability.ON_COMMIT_BATCH;
+
+    //PERIODIC 模式下后台提交的间隔, 毫秒
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    //缓存的反序列化节点个数, 0 表示不缓存
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    //数据文件中的页用 LZ4 压缩后按扇区存放, 页转换表保存在单独的 .ptt 文件中
+    private boolean pageCompression = false;
+
+    //支持 BPlusTreeFile.snapshot(): 有快照时被覆盖的页先把旧内容复制到 .snap 文件
+    private boolean snapshotEnabled = false;
+
+    //getKey 不在缓存中的节点直接在页上二分查找, 不反序列化
+    private boolean inPageSearch = false;
+
+    //页内 key 压缩: 整数 key 写差值, 其它 key 做前缀压缩, 节点按页的实际大小分裂. 与不压缩的文件格式不兼容
+    private boolean keyCompression = false;
+
+    //游标沿 rightPointer 连续移动时, 后台提前读入之后的叶子页数, 0 表示不预读
+    private int readaheadLeaves = DEFAULT_READAHEAD_LEAVES;
+
+    //从存储读出节点页时检查 CRC32C 校验和, 校验和总是会写入
+    private boolean verifyChecksums = true;
+
+    //删除后节点的填充率低于它时向兄弟节点借元素或与兄弟节点合并, 0 表示只处理空节点
+    private double minFillFactor = DEFAULT_MIN_FILL_FACTOR;
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public BPlusTreeConfig setCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cacheSize < 0: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public BPlusTreeConfig setBlockSize(int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("invalid blockSize: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public int getMaxKeySize() {
+        return maxKeySize;
+    }
+
+    public BPlusTreeConfig setMaxKeySize(int maxKeySize) {
+        if (maxKeySize < 0) {
+            throw new IllegalArgumentException("maxKeySize < 0: " + maxKeySize);
+        }
+        this.maxKeySize = maxKeySize;
+        return this;
+    }
+
+    public int getMaxValueSize() {
+        return maxValueSize;
+    }
+
+    public BPlusTreeConfig setMaxValueSize(int maxValueSize) {
+        if (maxValueSize < 0) {
+            throw new IllegalArgumentException("maxValueSize < 0: " + maxValueSize);
+        }
+        this.maxValueSize = maxValueSize;
+        return this;
+    }
+
+    public boolean isWalEnabled() {
+        return walEnabled;
+    }
+
+    public BPlusTreeConfig setWalEnabled(boolean walEnabled) {
+        this.walEnabled = walEnabled;
+        return this;
+    }
+
+    public int getWalBatchSize() {
+        return walBatchSize;
+    }
+
+    public BPlusTreeConfig setWalBatchSize(int walBatchSize) {
+        if (walBatchSize <= 0) {
+            throw new IllegalArgumentException("walBatchSize <= 0: " + walBatchSize);
+        }
+        this.walBatchSize = walBatchSize;
+        return this;
+    }
+
+    public long getWalCheckpointSize() {
+        return walCheckpointSize;
+    }
+
+    public BPlusTreeConfig setWalCheckpointSize(long walCheckpointSize) {
+        if (walCheckpointSize <= 0) {
+            throw new IllegalArgumentException("walCheckpointSize <= 0: " + walCheckpointSize);
+        }
+        this.walCheckpointSize = walCheckpointSize;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public BPlusTreeConfig setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("durability is null");
+        }
+        this.durability = durability;
+        return this;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public BPlusTreeConfig setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval <= 0: " + flushInterval);
+        }
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public BPlusTreeConfig setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("invalid segmentSize: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public StoreType getStoreType() {
+        return storeType;
+    }
+
+    public BPlusTreeConfig setStoreType(StoreType storeType) {
+        if (storeType == null) {
+            throw new IllegalArgumentException("storeType is null");
+        }
+        this.storeType = storeType;
+        return this;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public BPlusTreeConfig setBufferPoolSize(int bufferPoolSize) {
+        if (bufferPoolSize <= 0) {
+            throw new IllegalArgumentException("bufferPoolSize <= 0: " + bufferPoolSize);
+        }
+        this.bufferPoolSize = bufferPoolSize;
+        return this;
+    }
+
+    public int getReadaheadLeaves() {
+        return readaheadLeaves;
+    }
+
+    public BPlusTreeConfig setReadaheadLeaves(int readaheadLeaves) {
+        if (readaheadLeaves < 0) {
+            throw new IllegalArgumentException("readaheadLeaves < 0: " + readaheadLeaves);
+        }
+        this.readaheadLeaves = readaheadLeaves;
+        return this;
+    }
+
+    public double getMinFillFactor() {
+        return minFillFactor;
+    }
+
+    public BPlusTreeConfig setMinFillFactor(double minFillFactor) {
+        if (!(minFillFactor >= 0 && minFillFactor <= 0.5)) {
+            throw new IllegalArgumentException("minFillFactor not in [0, 0.5]: " + minFillFactor);
+        }
+        this.minFillFactor = minFillFactor;
+        return this;
+    }
+
+    public boolean isPageCompression() {
+        return pageCompression;
+    }
+
+    public BPlusTreeConfig setPageCompression(boolean pageCompression) {
+        this.pageCompression = pageCompression;
+        return this;
+    }
+
+    public boolean isKeyCompression() {
+        return keyCompression;
+    }
+
+    public BPlusTreeConfig setKeyCompression(boolean keyCompression) {
+        this.keyCompression = keyCompression;
+        return this;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    public BPlusTreeConfig setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        return this;
+    }
+
+    public boolean isSnapshotEnabled() {
+        return snapshotEnabled;
+    }
+
+    public BPlusTreeConfig setSnapshotEnabled(boolean snapshotEnabled) {
+        this.snapshotEnabled = snapshotEnabled;
+        return this;
+    }
+
+    public boolean isInPageSearch() {
+        return inPageSearch;
+    }
+
+    public BPlusTreeConfig setInPageSearch(boolean inPageSearch) {
+        this.inPageSearch = inPageSearch;
+        return this;
+    }
+}
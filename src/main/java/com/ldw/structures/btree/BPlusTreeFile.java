@@ -1,96 +1,266 @@
 package com.ldw.structures.btree;
 
 import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.metrics.Counter;
+import com.ldw.structures.store.BlockStore;
+import com.ldw.structures.store.ChannelBlockStore;
+import com.ldw.structures.store.CompressedBlockStore;
 import com.ldw.structures.store.FileBlockStore;
+import com.ldw.structures.store.FreeSpaceMap;
+import com.ldw.structures.store.SnapshotBlockStore;
+import com.ldw.structures.store.WriteAheadLog;
+import com.ldw.structures.store.WriteBuffer;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.BitSet;
-import java.util.RandomAccess;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> extends BPlusTree<K, V> {
 
     private File fileStorage;
 
-    private FileBlockStore storage;
-    private File fileFreeBlocks;
-    private BitSet freeBlocks;
+    private BlockStore storage;
 
-    private int storageBlock = 0;
+    //空闲块位图, 以位图页的形式保存在数据文件中
+    private final FreeSpaceMap freeSpace;
+
+    private long storageBlock = 0;
 
     private transient String fileName;
 
-    private int maxLeafNodes = 0;
-    private int maxInternalNodes = 0;
+    private long maxLeafNodes = 0;
+    private long maxInternalNodes = 0;
 
     private static final int MAGIC_1 = 0x42D6AECB;
-    private static final int MAGIC_2 = 0x6B708B42;
+    //文件格式变化时修改
+    private static final int MAGIC_2 = 0x5E1C0A94;
+
+    private final NodeCache<K, V> cache;
+
+    //预写日志, 未开启时节点直接写入 storage
+    private final WriteAheadLog wal;
+
+    private final int walBatchSize;
+
+    private final long walCheckpointSize;
+
+    private final Counter checkpoints = metrics.counter("wal.checkpoint");
+
+    private final BPlusTreeConfig.Durability durability;
+
+    private final long flushInterval;
+
+    //PERIODIC 模式下 open 之后才启动
+    private Flusher flusher;
+
+    //批量加载期间不逐个节点提交
+    private boolean bulkLoading = false;
+
+    private final Counter periodicFlushes = metrics.counter("flush.periodic");
+
+    private final Counter flushErrors = metrics.counter("flush.errors");
+
+    //后台提交失败的原因, 由下一次 commit/sync 抛出
+    private volatile RuntimeException flushFailure;
+
+    //open 时从日志重放的批次数
+    private final Counter replayedFrames = metrics.counter("wal.replay.frames");
+
+    //顺序扫描的预读线程, 第一次预读时才创建
+    private ThreadPoolExecutor readaheadExecutor;
+
+    private final Counter readaheadPages = metrics.counter("readahead.pages");
+
+    private final Counter readaheadErrors = metrics.counter("readahead.errors");
+
+    //已写入日志但还没提交的页, 提交之后才写入 storage
+    private final HashMap<Long, ByteBuffer> pendingPages = new HashMap<>();
+
+    //开启快照时包装 storage, 否则为 null
+    private final SnapshotBlockStore snapshots;
+
+    //每次有页写出时加 1, 记录在快照中
+    private long version = 0;
 
     public BPlusTreeFile(String fileName, Class<K> kType, Class<V> vType) throws InstantiationException, IllegalAccessException {
-        super(kType, vType);
+        this(fileName, new BPlusTreeConfig(), kType, vType);
+    }
+
+    public BPlusTreeFile(String fileName, BPlusTreeConfig config, Class<K> kType, Class<V> vType) throws InstantiationException, IllegalAccessException {
+        super(config, kType, vType);
         this.fileName = fileName;
+        this.cache = new NodeCache<K, V>(config.getCacheSize());
+        metrics.gauge("cache.size", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return cache.size();
+            }
+        });
 
         fileStorage = new File(fileName + ".data");
-        fileFreeBlocks = new File(fileName + ".free");
+        freeSpace = new FreeSpaceMap(BLOCK_SIZE);
+        if (config.isPageCompression()) {
+            //物理存储以扇区为块
+            final int sectors = CompressedBlockStore.SECTORS_PER_BLOCK;
+            storage = new CompressedBlockStore(createStore(config, BLOCK_SIZE / sectors, sectors),
+                    new File(fileName + ".ptt"), BLOCK_SIZE);
+        } else {
+            storage = createStore(config, BLOCK_SIZE, 1);
+        }
+        if (config.isSnapshotEnabled()) {
+            snapshots = new SnapshotBlockStore(storage,
+                    new FileBlockStore(new File(fileName + ".snap"), BLOCK_SIZE, config.getSegmentSize()));
+            storage = snapshots;
+        } else {
+            snapshots = null;
+        }
+        wal = config.isWalEnabled() ? new WriteAheadLog(new File(fileName + ".wal"), BLOCK_SIZE, metrics) : null;
+        walBatchSize = config.getWalBatchSize();
+        walCheckpointSize = config.getWalCheckpointSize();
+        durability = config.getDurability();
+        flushInterval = config.getFlushInterval();
+    }
 
-        freeBlocks = new BitSet();
-        storage = new FileBlockStore(fileStorage.getAbsolutePath(), BLOCK_SIZE);
+    private BlockStore createStore(BPlusTreeConfig config, int blockSize, int blocksPerPage) {
+        if (config.getStoreType() == BPlusTreeConfig.StoreType.CHANNEL) {
+            return new ChannelBlockStore(fileStorage, blockSize, config.getBufferPoolSize() * blocksPerPage, metrics);
+        }
+        return new FileBlockStore(fileStorage, blockSize, config.getSegmentSize(), metrics);
     }
 
     //----------------------------  获取节点 -----------------------------//
 
     @Override
-    protected Node<K, V> getNode(int pointer) {
+    protected Node<K, V> getNode(long pointer) {
         if (pointer == 0) {
             System.out.println(this.getClass().getName() + "::getNode(" + pointer + ") ERROR");
             return null;
         }
-        return getNodeFromStore(pointer);
+        nodeGets.inc();
+        Node<K, V> node = cache.get(pointer);
+        if (node == null) {
+            nodeLoads.inc();
+            node = cache.put(getNodeFromStore(pointer));
+        }
+        return node;
     }
 
-    private Node<K, V> getNodeFromStore(final int nodeid) {
-        final int index = nodeid < 0 ? -nodeid : nodeid;
-        ByteBuffer buf = storage.get(index);
+    private Node<K, V> getNodeFromStore(final long nodeid) {
+        ByteBuffer buf = getPage(nodeid);
+        if (verifyChecksums) {
+            try {
+                Node.checkPage(buf, nodeid);
+            } catch (RuntimeException e) {
+                releasePage(buf);
+                throw e;
+            }
+        }
         Node<K, V> node = Node.deserialize(buf, this);
         if (rootPointer == node.pointer) {
             System.out.println(this.getClass().getName() + "::getNodeFromStore(" + nodeid + ") WARN LOADED ROOT NODE");
         }
 
-        storage.release(buf);
+        releasePage(buf);
         return node;
     }
+
+    @Override
+    protected Node<K, V> getCachedNode(long pointer) {
+        return cache.get(pointer);
+    }
+
+    /**
+     * 还没有应用到存储的页以日志批次中的镜像为准
+     */
+    @Override
+    protected ByteBuffer getPage(long pointer) {
+        ByteBuffer buf = pendingPages.get(pointer);
+        if (buf != null) {
+            buf = buf.duplicate();
+            buf.clear();
+            return buf;
+        }
+        return storage.get(pointer);
+    }
+
+    @Override
+    protected void releasePage(ByteBuffer page) {
+        storage.release(page);
+    }
     //-------------------------------------------------------------------//
 
 
     //----------------------------  申请节点 -----------------------------//
     public boolean open() {
+        final boolean opened;
+        lock.writeLock().lock();
+        try {
+            opened = openLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (durability == BPlusTreeConfig.Durability.PERIODIC) {
+            startFlusher();
+        }
+        return opened;
+    }
+
+    private boolean openLocked() {
         boolean allRight = false;
         if (storage.isOpen()) {
             throw new RuntimeException("file is open");
         }
 
         storage.open();
+        if (wal != null) {
+            wal.open();
+        }
         try {
+            int replayed = 0;
             if (storage.sizeInBlocks() == 0) {
-                clearStates();
-                return true;
+                //还没有落盘过的文件在崩溃前提交的批次只在日志中
+                if (wal != null) {
+                    replayed = wal.replay(storage);
+                }
+                if (replayed == 0) {
+                    clearStates();
+                    return true;
+                }
             }
             try {
                 boolean isClean = readMetaData();
-                if (isClean) {
-                    if (writeMetaData(false)) {
-                        allRight = true;
+                loadFreeSpace();
+                if (!isClean) {
+                    if (wal == null) {
+                        throw new RuntimeException("need recovery");
                     }
-                } else {
-                    throw new RuntimeException("need recovery");
+                    recover(replayed);
+                }
+                //接受写入之前先把 "未干净关闭" 的元数据和重放的页落盘, 之后崩溃时 open 才会重放日志.
+                //落盘之后日志中的内容都已经在数据文件里, 才能清空日志
+                if (writeMetaData(false)) {
+                    allRight = true;
+                }
+                storage.sync();
+                if (wal != null) {
+                    wal.truncate();
                 }
             } catch (RuntimeException e) {
                 storage.close();
+                if (wal != null) {
+                    wal.close();
+                }
                 throw e;
             }
         } finally {
@@ -113,60 +283,112 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
         }
         t_b_order_leaf = buf.getInt();
         t_b_order_internal = buf.getInt();
-        if (t_b_order_leaf != M / 2) {
+        if (t_b_order_leaf != leafOrder) {
             throw new RuntimeException("Invalid metadata (b-order leaf) " + t_b_order_leaf + " != "
-                    + M / 2);
+                    + leafOrder);
         }
-        if (t_b_order_internal != M / 2) {
+        if (t_b_order_internal != internalOrder) {
             throw new RuntimeException("Invalid metadata (b-order internal) " + t_b_order_internal
-                    + " != " + M / 2);
+                    + " != " + internalOrder);
         }
-        storageBlock = buf.getInt();
-        rootPointer = buf.getInt();
-        headPointer = buf.getInt();
-        lastPointer = buf.getInt();
+        storageBlock = buf.getLong();
+        rootPointer = buf.getLong();
+        headPointer = buf.getLong();
+        lastPointer = buf.getLong();
         elements = buf.getInt();
         high = buf.getInt();
-        maxInternalNodes = buf.getInt();
-        maxLeafNodes = buf.getInt();
+        maxInternalNodes = buf.getLong();
+        maxLeafNodes = buf.getLong();
         isClean = ((buf.get() == ((byte) 0xEA)) ? true : false);
+        boolean compressed = buf.get() != 0;
+        if (compressed != (keyEncoding() != null)) {
+            throw new RuntimeException("Invalid metadata (keyCompression) " + compressed);
+        }
         magic2 = buf.getInt();
         if (magic2 != MAGIC_2) {
             throw new RuntimeException("Invalid metadata (MAGIC2)");
         }
         storage.release(buf);
-        if (isClean && fileFreeBlocks.exists()) {
-            try {
-                RandomAccessFile fos = new RandomAccessFile(fileFreeBlocks, "rw");
-                FileChannel channel = fos.getChannel();
-                ByteBuffer lenght = ByteBuffer.allocate(4);
-                channel.read(lenght);
-                int anInt = lenght.getInt();
-                ByteBuffer allocate = ByteBuffer.allocate(anInt);
-                channel.read(allocate);
-                BitSet newFreeBlocks = BitSet.valueOf(allocate.array());
-                freeBlocks = newFreeBlocks;
-            } catch (IOException e) {
-                System.out.println("IOException in readMetaData()" + e);
-            }
-        }
         return isClean;
     }
 
+    /**
+     * 读取所有位图页
+     */
+    private void loadFreeSpace() {
+        freeSpace.clear();
+        for (int group = 0; freeSpace.mapBlock(group) <= storageBlock; group++) {
+            ByteBuffer buf = storage.get(freeSpace.mapBlock(group));
+            freeSpace.load(group, buf);
+            storage.release(buf);
+        }
+    }
+
+    /**
+     * 重放日志, 位图页和节点在同一批次中写入日志, 重放之后两者是一致的. 由调用者落盘后再清空日志
+     */
+    private void recover(int replayed) {
+        int frames = replayed > 0 ? replayed : wal.replay(storage);
+        readMetaData();
+        loadFreeSpace();
+        replayedFrames.add(frames);
+    }
+
+    /**
+     * 优先复用 nearPointer 之后最近的空闲块, 没有空闲块时在文件末尾追加, 跳过每组的位图页
+     */
     @Override
-    public int allocNode(boolean isLeaf) {
-        int pointer = freeBlocks.nextSetBit(0);
-        if (pointer < 0) {
+    public long allocNode(boolean isLeaf, long nearPointer) {
+        long pointer = freeSpace.allocate(nearPointer);
+        if (pointer >= 0) {
+            allocReused.inc();
+        } else {
+            allocAppended.inc();
             if (isLeaf) {
                 maxLeafNodes++;
             } else {
                 maxInternalNodes++;
             }
             pointer = ++storageBlock;
-        } else {
-            freeBlocks.clear(pointer);
+            if (freeSpace.isMapBlock(pointer)) {
+                //新的一组, 写出它的空位图页
+                freeSpace.markDirty(freeSpace.groupOf(pointer));
+                pointer = ++storageBlock;
+            }
+        }
+        return pointer;
+    }
+
+    //-------------------------------------------------------------------//
+
+    //----------------------------  批量加载 -----------------------------//
+
+    /**
+     * 批量加载完成后只提交一次. 开启日志时新的根和计数随节点在同一个批次中提交,
+     * 节点落盘之前数据文件中的元数据不会指向它们
+     */
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> sorted, double fillFactor) {
+        lock.writeLock().lock();
+        try {
+            bulkLoading = true;
+            try {
+                super.bulkLoad(sorted, fillFactor);
+            } finally {
+                bulkLoading = false;
+            }
+            releaseNodes();
+            if (wal != null) {
+                commitBatch();
+            } else {
+                writeMetaData(false);
+                if (durability == BPlusTreeConfig.Durability.SYNC_EACH_OP) {
+                    storage.sync();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        return (isLeaf ? pointer : -pointer);
     }
 
     //-------------------------------------------------------------------//
@@ -174,74 +396,81 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
     //----------------------------  存储节点 -----------------------------//
     @Override
     protected void putNode(Node<K, V> node) {
-        putNodeToStore(node);
+        modCount++;
+        cache.markDirty(node);
     }
 
     private void putNodeToStore(Node<K, V> node) {
-        int nodePointer = node.pointer;
-        int index = nodePointer < 0 ? -nodePointer : nodePointer;
-        FileBlockStore.WriteBuffer wbuf = storage.set(index);
-        MappedByteBuffer buf = wbuf.buf();
+        final long index = node.pointer;
+        nodeWrites.inc();
+        if (wal != null) {
+            ByteBuffer page = ByteBuffer.allocate(BLOCK_SIZE);
+            if (node.isDeleted()) {
+                node.clean(page);
+                freeSpace.free(index);
+            } else {
+                node.serialize(page);
+            }
+            wal.append(index, page);
+            pendingPages.put(index, page);
+            return;
+        }
+        WriteBuffer wbuf = storage.set(index);
+        ByteBuffer buf = wbuf.buf();
 
         if (node.isDeleted()) {
             node.clean(buf);
-            freeBlocks.set(index);
+            freeSpace.free(index);
         } else {
             node.serialize(buf);
         }
         wbuf.save();
     }
 
+    private void putFreeSpaceToStore(int group) {
+        long index = freeSpace.mapBlock(group);
+        if (wal != null) {
+            ByteBuffer page = ByteBuffer.allocate(BLOCK_SIZE);
+            freeSpace.save(group, page);
+            wal.append(index, page);
+            pendingPages.put(index, page);
+            return;
+        }
+        WriteBuffer wbuf = storage.set(index);
+        freeSpace.save(group, wbuf.buf());
+        wbuf.save();
+    }
+
     private boolean writeMetaData(boolean isClean) {
-        final FileBlockStore.WriteBuffer wbuf = storage.set(0);
-        final MappedByteBuffer buf = wbuf.buf();
+        final WriteBuffer wbuf = storage.set(0);
+        final ByteBuffer buf = wbuf.buf();
         boolean isOK = false;
+        serializeMetaData(buf, isClean);
+        isOK = wbuf.save();
+        if (isClean) {
+            storage.sync();
+        }
+        return isOK;
+    }
+
+    private void serializeMetaData(ByteBuffer buf, boolean isClean) {
+        buf.clear();
         buf.putInt(MAGIC_1)
                 .putInt(BLOCK_SIZE)
-                .putInt(M / 2)
-                .putInt(M / 2)
-                .putInt(storageBlock)
-                .putInt(rootPointer)
-                .putInt(headPointer)
-                .putInt(lastPointer)
+                .putInt(leafOrder)
+                .putInt(internalOrder)
+                .putLong(storageBlock)
+                .putLong(rootPointer)
+                .putLong(headPointer)
+                .putLong(lastPointer)
                 .putInt(elements)
                 .putInt(high)
-                .putInt(maxInternalNodes)
-                .putInt(maxLeafNodes)
+                .putLong(maxInternalNodes)
+                .putLong(maxLeafNodes)
                 .put((byte) (isClean ? 0xEA : 0x00))
+                .put((byte) (keyEncoding() != null ? 1 : 0))
                 .putInt(MAGIC_2)
                 .flip();
-        isOK = wbuf.save();
-        if (isClean) {
-            storage.sync();
-        }
-        try {
-            if (isClean) {
-                FileOutputStream fos = null;
-                FileChannel fosChannel = null;
-                try {
-                    fos = new FileOutputStream(fileFreeBlocks, false);
-                    fosChannel = fos.getChannel();
-                    byte[] bytes = freeBlocks.toByteArray();
-                    ByteBuffer wrap = ByteBuffer.wrap(bytes);
-
-                    fosChannel.write(ByteBuffer.allocate(4).putInt(bytes.length));
-                    fosChannel.write(wrap);
-                } finally {
-                    try {
-                        fosChannel.force(true);
-                        fos.close();
-                    } catch (Exception e) {
-                    }
-                }
-//                BitSet.serializeToFile(fileFreeBlocks, freeBlocks);
-            } else {
-                fileFreeBlocks.delete();
-            }
-        } catch (IOException e) {
-            System.out.println("IOException in writeMetaData(" + isClean + ")" + e);
-        }
-        return isOK;
     }
 
     //-------------------------------------------------------------------//
@@ -249,8 +478,7 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
     //----------------------------  释放节点 -----------------------------//
     @Override
     protected void freeNode(Node<K, V> node) {
-        int pointer = node.pointer;
-        if (pointer == 0) {
+        if (node.pointer == 0) {
             return;
         }
         node.delete();
@@ -259,11 +487,37 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
 
     @Override
     protected void releaseNodes() {
+        //只有写操作会产生脏节点, 读操作只做淘汰
+        if (cache.hasDirty() || freeSpace.hasDirty()) {
+            version++;
+            for (Node<K, V> node : cache.drainDirty()) {
+                putNodeToStore(node);
+            }
+            //释放节点会修改位图, 所以位图页放在节点之后写
+            for (int group : freeSpace.drainDirty()) {
+                putFreeSpaceToStore(group);
+            }
+            if (durability == BPlusTreeConfig.Durability.SYNC_EACH_OP && !bulkLoading) {
+                commitDurable();
+            } else if (wal != null && wal.pendingPages() >= walBatchSize) {
+                commitBatch();
+            }
+        }
+        cache.trim();
+    }
 
+    @Override
+    protected void evictNode(long pointer) {
+        cache.remove(pointer);
     }
 
     @Override
     protected boolean clearStorage() {
+        cache.clear();
+        pendingPages.clear();
+        if (wal != null) {
+            wal.truncate();
+        }
         storage.delete();
         return storage.open();
     }
@@ -274,7 +528,7 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
         maxLeafNodes = 0;
         storageBlock = 0;
 
-        freeBlocks = new BitSet();
+        freeSpace.clear();
 
         super.clearStates();
 
@@ -283,20 +537,622 @@ public class BPlusTreeFile<K extends DataHolder<K>, V extends DataHolder<V>> ext
     }
 
     public void sync() {
+        lock.writeLock().lock();
         try {
-            privateSync(true, true);
+            checkFlushFailure();
+            releaseNodes();
+            privateSync();
         } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 提交当前批次: 日志顺序写入并 fsync 一次之后, 批次中的页才写入 storage
+     */
+    public void commit() {
+        lock.writeLock().lock();
+        try {
+            checkFlushFailure();
             releaseNodes();
+            commitBatch();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkFlushFailure() {
+        final RuntimeException failure = flushFailure;
+        if (failure != null) {
+            flushFailure = null;
+            throw new RuntimeException("background flush failed", failure);
+        }
+    }
+
+    private void commitBatch() {
+        if (wal == null || pendingPages.isEmpty()) {
+            return;
+        }
+        ByteBuffer meta = ByteBuffer.allocate(BLOCK_SIZE);
+        serializeMetaData(meta, false);
+        wal.append(0, meta);
+        if (!wal.commit(durability != BPlusTreeConfig.Durability.NONE)) {
+            throw new RuntimeException("commit write ahead log failed");
+        }
+        for (Map.Entry<Long, ByteBuffer> entry : pendingPages.entrySet()) {
+            WriteBuffer wbuf = storage.set(entry.getKey());
+            ByteBuffer page = entry.getValue().duplicate();
+            page.clear();
+            wbuf.buf().put(page);
+            wbuf.save();
+        }
+        pendingPages.clear();
+        if (wal.size() >= walCheckpointSize) {
+            checkpoint();
         }
     }
 
-    private void privateSync(boolean syncInternal, boolean forceSyncStore) {
+    /**
+     * 元数据和所有页落盘之后清空日志, 限制日志的长度和 open 时重放的时间.
+     * 落盘失败时 storage.sync() 抛出异常, 日志保留到下一次检查点或 open 时重放
+     */
+    private void checkpoint() {
+        writeMetaData(false);
         storage.sync();
+        wal.truncate();
+        checkpoints.inc();
+    }
+
+    /**
+     * 开启日志时提交当前批次, 否则把脏页写回数据文件. 没有日志时异常关闭的文件仍然不能打开,
+     * 写回只是让之后的 sync()/close() 更快
+     */
+    private void commitDurable() {
+        if (wal != null) {
+            commitBatch();
+        } else {
+            storage.sync();
+        }
+    }
+
+    //----------------------------  压缩文件 -----------------------------//
+
+    /**
+     * 把文件末尾的节点移动到前面的空闲块中, 然后截断文件末尾的空闲块.
+     * 每次调用最多移动 maxPages 个节点, 只在这期间持有写锁, 可以在后台反复调用直到返回 0,
+     * 不会长时间阻塞前台的读写. 移动和新的文件大小在同一个日志批次中提交.
+     *
+     * @return 移动的节点数
+     */
+    public int compact(int maxPages) {
+        if (maxPages <= 0) {
+            throw new IllegalArgumentException("maxPages <= 0: " + maxPages);
+        }
+        lock.writeLock().lock();
+        try {
+            final long before = storageBlock;
+            int moved = 0;
+            while (storageBlock > 1) {
+                final long tail = storageBlock;
+                if (freeSpace.isMapBlock(tail) || freeSpace.reserve(tail)) {
+                    //末尾的空闲块和已经没有其它块的位图页直接丢弃
+                    storageBlock--;
+                    continue;
+                }
+                if (moved == maxPages) {
+                    break;
+                }
+                long target = freeSpace.allocate(0);
+                if (target < 0) {
+                    break;
+                }
+                if (!relocateTail(tail, target)) {
+                    freeSpace.free(target);
+                    break;
+                }
+                storageBlock--;
+                moved++;
+            }
+            if (storageBlock != before) {
+                releaseNodes();
+                commitBatch();
+                writeMetaData(false);
+                storage.truncate(storageBlock + 1);
+            }
+            return moved;
+        } finally {
+            releaseNodes();
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean relocateTail(long tail, long target) {
+        ByteBuffer page = getPage(tail);
+        final long pointer = page.getLong(0);
+        releasePage(page);
+        if (pointer == 0) {
+            return false;
+        }
+        return relocateNode(getNode(pointer), target);
+    }
+    //-------------------------------------------------------------------//
+
+    public void close() {
+        //后台线程提交和预读时要拿锁, 先在锁外停掉它们
+        stopFlusher();
+        stopReadahead();
+        lock.writeLock().lock();
+        try {
+            if (!storage.isOpen()) {
+                return;
+            }
+            releaseNodes();
+            commitBatch();
+            writeMetaData(true);
+            if (wal != null) {
+                wal.truncate();
+                wal.close();
+            }
+            cache.clear();
+            storage.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 没有日志时直接 sync 存储; 开启日志时做一次检查点: 提交批次, 元数据和所有页落盘之后清空日志
+     */
+    private void privateSync() {
+        if (wal == null) {
+            storage.sync();
+            return;
+        }
+        commitBatch();
+        checkpoint();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  后台提交 -----------------------------//
+
+    private synchronized void startFlusher() {
+        if (flusher == null && storage.isOpen()) {
+            flusher = new Flusher();
+            flusher.start();
+        }
+    }
+
+    private void stopFlusher() {
+        final Flusher stopping;
+        synchronized (this) {
+            stopping = flusher;
+            flusher = null;
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+        }
+    }
+
+    /**
+     * PERIODIC 模式的后台线程: 每隔 flushInterval 毫秒把缓存中的脏节点写出并提交一次.
+     * 不用 interrupt 唤醒, 中断正在做 FileChannel 读写的线程会关闭 channel
+     */
+    private final class Flusher extends Thread {
+
+        private boolean running = true;
+
+        Flusher() {
+            super("bptree-flusher-" + fileStorage.getName());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (waitInterval()) {
+                lock.writeLock().lock();
+                try {
+                    if (!storage.isOpen()) {
+                        return;
+                    }
+                    if (cache.hasDirty() || freeSpace.hasDirty() || !pendingPages.isEmpty()) {
+                        releaseNodes();
+                        commitDurable();
+                        periodicFlushes.inc();
+                    }
+                } catch (RuntimeException e) {
+                    //交给前台的下一次 commit/sync 抛出, 下一个间隔再重试
+                    flushErrors.inc();
+                    flushFailure = e;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        private synchronized boolean waitInterval() {
+            final long deadline = System.currentTimeMillis() + flushInterval;
+            long remaining = flushInterval;
+            while (running && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return running;
+        }
+
+        void shutdown() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  顺序预读 -----------------------------//
+
+    /**
+     * 交给单个后台线程预读, 线程忙时最多排队几个请求, 再多的直接丢弃
+     */
+    @Override
+    protected void readahead(long pointer) {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            if (readaheadExecutor == null) {
+                readaheadExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(4), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "bptree-readahead-" + fileStorage.getName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+            }
+            executor = readaheadExecutor;
+        }
+        executor.execute(new Readahead(pointer));
+    }
+
+    /**
+     * 丢掉排队的请求, 等正在进行的预读结束. 不能 shutdownNow, 中断 FileChannel 读写会关闭 channel
+     */
+    private void stopReadahead() {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = readaheadExecutor;
+            readaheadExecutor = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.getQueue().clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 沿叶子链表预读: 缓存中的叶子直接取 rightPointer, 其它的让存储预读页, 再从页上固定偏移读出 rightPointer.
+     * 持有读锁, 预读期间文件不会被截断或关闭. 存储中的页可能比日志批次中的旧, 读出的指针只是提示,
+     * 页头不是对应的叶子时停止
+     */
+    private final class Readahead implements Runnable {
+
+        private final long start;
+
+        Readahead(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            lock.readLock().lock();
+            try {
+                long pointer = start;
+                for (int i = 0; i < readaheadLeaves && pointer > 0 && pointer <= storageBlock; i++) {
+                    if (!storage.isOpen()) {
+                        return;
+                    }
+                    final Node<K, V> cached = cache.get(pointer);
+                    if (cached != null) {
+                        if (!cached.isLeaf()) {
+                            return;
+                        }
+                        pointer = ((LeafNode<K, V>) cached).rightPointer;
+                        continue;
+                    }
+                    storage.prefetch(pointer);
+                    final ByteBuffer page = storage.get(pointer);
+                    if (page == null) {
+                        return;
+                    }
+                    try {
+                        if (page.getLong(0) != pointer || !Node.isLeafPage(page)) {
+                            return;
+                        }
+                        pointer = page.getLong(RIGHT_POINTER_OFFSET);
+                    } finally {
+                        storage.release(page);
+                    }
+                    readaheadPages.inc();
+                }
+            } catch (RuntimeException e) {
+                //预读只是提示, 失败不影响前台的读取
+                readaheadErrors.inc();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  快照 -----------------------------//
+
+    /**
+     * 创建当前已写入内容的只读快照. 快照的读取不加树的锁, 期间树可以继续写入. 需要开启 snapshotEnabled,
+     * 用完后调用 {@link Snapshot#close()} 回收为它保留的旧页. 关闭或清空树时所有快照一起关闭
+     */
+    public Snapshot<K, V> snapshot() {
+        if (snapshots == null) {
+            throw new IllegalStateException("snapshot not enabled");
+        }
+        lock.writeLock().lock();
+        try {
+            if (!storage.isOpen()) {
+                throw new IllegalStateException("file is not open");
+            }
+            //快照直接读存储, 日志批次中的页要先写入
+            releaseNodes();
+            commitBatch();
+            return new Snapshot<K, V>(this, snapshots.pin(storageBlock + 1),
+                    rootPointer, headPointer, elements, version);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  校验 -----------------------------//
+
+    /**
+     * 检查数据文件中的每个节点页: 校验和, 页头, key 的顺序, 叶子节点的兄弟链接, 内部节点到子节点的链接和分隔 key.
+     * 块号区间平均分给 threads 个线程, 每个线程顺序读取自己的区间. 检查期间持有读锁, 写操作会被阻塞.
+     * 所有节点的摘要保存在以块号为下标的数组中, 块数超过 int 范围时不能检查
+     */
+    public VerifyReport verify(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0: " + threads);
+        }
+        lock.readLock().lock();
+        try {
+            if (storageBlock >= Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("too many blocks to verify: " + storageBlock);
+            }
+            final int blocks = (int) storageBlock;
+            //泛型数组只能以通配类型创建, 其中只放入 summarize 创建的 PageInfo<K>
+            @SuppressWarnings("unchecked")
+            final PageInfo<K>[] pages = (PageInfo<K>[]) new PageInfo<?>[blocks + 1];
+            final List<Long> broken = new ArrayList<Long>();
+            final List<String> problems = new ArrayList<String>();
+            final int chunk = (blocks + threads - 1) / threads;
+            final List<Scanner> scanners = new ArrayList<Scanner>(threads);
+            final Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                scanners.add(new Scanner(1 + t * chunk, Math.min(blocks, (t + 1) * chunk), pages));
+                workers[t] = new Thread(scanners.get(t), "verify-" + t);
+                workers[t].start();
+            }
+            int scanned = 0;
+            for (int t = 0; t < threads; t++) {
+                try {
+                    workers[t].join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("verify interrupted", e);
+                }
+                final Scanner scanner = scanners.get(t);
+                scanned += scanner.scanned;
+                broken.addAll(scanner.broken);
+                problems.addAll(scanner.problems);
+            }
+            checkLinks(pages, problems);
+            Collections.sort(broken);
+            return new VerifyReport(scanned, broken, problems);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 校验需要的节点摘要, 叶子节点只保留首尾 key
+     */
+    private static final class PageInfo<K extends DataHolder<K>> {
+        long pointer;
+        int allocated;
+        K first;
+        K last;
+        long left;
+        long right;
+        long[] childs;
+        List<K> keys;
+    }
+
+    private final class Scanner implements Runnable {
+
+        private final int from;
+
+        private final int to;
+
+        private final PageInfo<K>[] pages;
+
+        int scanned = 0;
+
+        final List<Long> broken = new ArrayList<Long>();
+
+        final List<String> problems = new ArrayList<String>();
+
+        Scanner(int from, int to, PageInfo<K>[] pages) {
+            this.from = from;
+            this.to = to;
+            this.pages = pages;
+        }
+
+        @Override
+        public void run() {
+            for (int i = from; i <= to; i++) {
+                if (freeSpace.isMapBlock(i) || freeSpace.isFree(i)) {
+                    continue;
+                }
+                scanned++;
+                ByteBuffer page = null;
+                try {
+                    page = getPage(i);
+                    if (page == null) {
+                        throw new RuntimeException("unreadable");
+                    }
+                    final long pointer = page.getLong(0);
+                    if (pointer != i) {
+                        throw new RuntimeException("Invalid Node pointer=" + pointer);
+                    }
+                    Node.checkPage(page, pointer);
+                    pages[i] = summarize(i, Node.deserialize(page, BPlusTreeFile.this));
+                } catch (RuntimeException e) {
+                    broken.add((long) i);
+                    problems.add("block " + i + ": " + e.getMessage());
+                } finally {
+                    if (page != null) {
+                        releasePage(page);
+                    }
+                }
+            }
+        }
+
+        private PageInfo<K> summarize(int block, Node<K, V> node) {
+            final PageInfo<K> info = new PageInfo<K>();
+            info.pointer = node.pointer;
+            info.allocated = node.allocated;
+            for (int j = 1; j < node.allocated; j++) {
+                if (node.key(j - 1).compareTo(node.key(j)) >= 0) {
+                    problems.add("block " + block + ": keys out of order at " + j);
+                    break;
+                }
+            }
+            if (node.allocated > 0) {
+                info.first = node.key(0);
+                info.last = node.key(node.allocated - 1);
+            }
+            if (node.isLeaf()) {
+                info.left = ((LeafNode<K, V>) node).leftPointer;
+                info.right = ((LeafNode<K, V>) node).rightPointer;
+            } else {
+                info.childs = Arrays.copyOf(((InternalNode<K, V>) node).childs, node.allocated + 1);
+                info.keys = new ArrayList<K>(node.allocated);
+                for (int j = 0; j < node.allocated; j++) {
+                    info.keys.add(node.key(j));
+                }
+            }
+            return info;
+        }
+    }
+
+    private static <K extends DataHolder<K>> PageInfo<K> info(PageInfo<K>[] pages, long pointer) {
+        if (pointer <= 0 || pointer >= pages.length) {
+            return null;
+        }
+        return pages[(int) pointer];
+    }
+
+    private void checkLinks(PageInfo<K>[] pages, List<String> problems) {
+        if (info(pages, rootPointer) == null) {
+            problems.add("root " + rootPointer + " is not a valid node");
+        }
+        //父子链接和分隔 key
+        final int[] parents = new int[pages.length];
+        for (int i = 1; i < pages.length; i++) {
+            final PageInfo<K> p = pages[i];
+            if (p == null || p.childs == null) {
+                continue;
+            }
+            for (int c = 0; c <= p.allocated; c++) {
+                final long child = p.childs[c];
+                final PageInfo<K> info = info(pages, child);
+                if (info == null) {
+                    problems.add("block " + i + ": child " + c + " -> " + child + " is not a valid node");
+                    continue;
+                }
+                final int block = (int) child;
+                if (parents[block] != 0) {
+                    problems.add("block " + block + ": referenced by block " + parents[block] + " and block " + i);
+                    continue;
+                }
+                parents[block] = i;
+                if (info.allocated == 0) {
+                    continue;
+                }
+                if (c > 0 && info.first.compareTo(p.keys.get(c - 1)) < 0) {
+                    problems.add("block " + block + ": first key " + info.first + " < separator " + p.keys.get(c - 1)
+                            + " in parent " + i);
+                }
+                if (c < p.allocated && info.last.compareTo(p.keys.get(c)) >= 0) {
+                    problems.add("block " + block + ": last key " + info.last + " >= separator " + p.keys.get(c)
+                            + " in parent " + i);
+                }
+            }
+        }
+        for (int i = 1; i < pages.length; i++) {
+            if (pages[i] != null && parents[i] == 0 && i != rootPointer) {
+                problems.add("block " + i + ": not referenced by any parent");
+            }
+        }
+        //叶子节点的兄弟链接
+        for (int i = 1; i < pages.length; i++) {
+            final PageInfo<K> p = pages[i];
+            if (p == null || p.childs != null) {
+                continue;
+            }
+            if (p.right != 0) {
+                final PageInfo<K> r = info(pages, p.right);
+                if (r == null || r.childs != null) {
+                    problems.add("block " + i + ": right sibling " + p.right + " is not a valid leaf");
+                } else if (r.left != p.pointer) {
+                    problems.add("block " + i + ": right sibling " + p.right + " links back to " + r.left);
+                } else if (p.allocated > 0 && r.allocated > 0 && p.last.compareTo(r.first) >= 0) {
+                    problems.add("block " + i + ": last key " + p.last + " >= first key " + r.first
+                            + " of right sibling " + p.right);
+                }
+            } else if (p.pointer != lastPointer) {
+                problems.add("block " + i + ": no right sibling but last leaf is " + lastPointer);
+            }
+            if (p.left != 0) {
+                final PageInfo<K> l = info(pages, p.left);
+                if (l == null || l.childs != null) {
+                    problems.add("block " + i + ": left sibling " + p.left + " is not a valid leaf");
+                }
+            } else if (p.pointer != headPointer) {
+                problems.add("block " + i + ": no left sibling but head leaf is " + headPointer);
+            }
+        }
     }
     //-------------------------------------------------------------------//
 
     @Override
-    protected int getHighestNodePointer() {
+    protected long getHighestNodePointer() {
         return storageBlock;
     }
 
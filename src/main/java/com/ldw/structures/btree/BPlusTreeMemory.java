@@ -0,0 +1,193 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.store.MemoryBlockStore;
+import com.ldw.structures.store.WriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.function.LongSupplier;
+
+/**
+ * 页保存在堆外内存中的 B+树, 不持久化.
+ * <p>
+ * 页格式与 {@link BPlusTreeFile} 相同, 节点同样经过 {@link NodeCache}, 堆上只有缓存中的节点,
+ * 其余的都以序列化后的页保存在 {@link MemoryBlockStore} 中. 没有元数据页, 位图页和预写日志,
+ * 释放的块只记录在内存的位图中.
+ */
+public class BPlusTreeMemory<K extends DataHolder<K>, V extends DataHolder<V>> extends BPlusTree<K, V> {
+
+    private final MemoryBlockStore storage;
+
+    private final NodeCache<K, V> cache;
+
+    //已释放可以复用的块
+    private final BitSet freeBlocks = new BitSet();
+
+    private long storageBlock = 0;
+
+    public BPlusTreeMemory(Class<K> kType, Class<V> vType) throws InstantiationException, IllegalAccessException {
+        this(new BPlusTreeConfig(), kType, vType);
+    }
+
+    public BPlusTreeMemory(BPlusTreeConfig config, Class<K> kType, Class<V> vType) throws InstantiationException, IllegalAccessException {
+        super(config, kType, vType);
+        this.cache = new NodeCache<K, V>(config.getCacheSize());
+        metrics.gauge("cache.size", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return cache.size();
+            }
+        });
+        this.storage = new MemoryBlockStore(BLOCK_SIZE, config.getSegmentSize());
+        storage.open();
+        clearStates();
+    }
+
+    //----------------------------  获取节点 -----------------------------//
+    @Override
+    protected Node<K, V> getNode(long pointer) {
+        nodeGets.inc();
+        Node<K, V> node = cache.get(pointer);
+        if (node == null) {
+            nodeLoads.inc();
+            node = cache.put(getNodeFromStore(pointer));
+        }
+        return node;
+    }
+
+    private Node<K, V> getNodeFromStore(final long pointer) {
+        final ByteBuffer page = getPage(pointer);
+        if (page == null) {
+            throw new RuntimeException("Invalid Node pointer=" + pointer);
+        }
+        if (verifyChecksums) {
+            Node.checkPage(page, pointer);
+        }
+        return Node.deserialize(page, this);
+    }
+
+    @Override
+    protected Node<K, V> getCachedNode(long pointer) {
+        return cache.get(pointer);
+    }
+
+    @Override
+    protected ByteBuffer getPage(long pointer) {
+        return storage.get(pointer);
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  申请节点 -----------------------------//
+
+    /**
+     * 优先复用 nearPointer 之后最近的空闲块. 空闲块记录在 BitSet 中, 块号不能超过 int 范围
+     */
+    @Override
+    public long allocNode(boolean isLeaf, long nearPointer) {
+        int pointer = freeBlocks.nextSetBit((int) Math.min(nearPointer, Integer.MAX_VALUE - 1));
+        if (pointer < 0) {
+            pointer = freeBlocks.nextSetBit(0);
+        }
+        if (pointer > 0) {
+            freeBlocks.clear(pointer);
+            allocReused.inc();
+            return pointer;
+        }
+        if (storageBlock >= Integer.MAX_VALUE - 1) {
+            throw new RuntimeException("out of blocks: " + storageBlock);
+        }
+        allocAppended.inc();
+        return ++storageBlock;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  存储节点 -----------------------------//
+    @Override
+    protected void putNode(Node<K, V> node) {
+        modCount++;
+        cache.markDirty(node);
+    }
+
+    private void putNodeToStore(Node<K, V> node) {
+        final long index = node.pointer;
+        nodeWrites.inc();
+        if (node.isDeleted()) {
+            freeBlocks.set((int) index);
+            return;
+        }
+        final WriteBuffer wbuf = storage.set(index);
+        if (wbuf == null) {
+            throw new RuntimeException("out of memory for block " + index);
+        }
+        node.serialize(wbuf.buf());
+        wbuf.save();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  释放节点 -----------------------------//
+    @Override
+    protected void freeNode(Node<K, V> node) {
+        if (node.pointer == 0) {
+            return;
+        }
+        node.delete();
+        putNode(node);
+    }
+
+    @Override
+    protected void releaseNodes() {
+        if (cache.hasDirty()) {
+            for (Node<K, V> node : cache.drainDirty()) {
+                putNodeToStore(node);
+            }
+        }
+        cache.trim();
+    }
+
+    @Override
+    protected void evictNode(long pointer) {
+        cache.remove(pointer);
+    }
+
+    @Override
+    protected boolean clearStorage() {
+        cache.clear();
+        storage.delete();
+        return storage.open();
+    }
+
+    @Override
+    protected void clearStates() {
+        storageBlock = 0;
+        freeBlocks.clear();
+        super.clearStates();
+        releaseNodes();
+    }
+    //-------------------------------------------------------------------//
+
+    /**
+     * 释放所有堆外内存, 之后不能再使用
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            cache.clear();
+            storage.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected long getHighestNodePointer() {
+        return storageBlock;
+    }
+
+    /**
+     * 已分配的堆外内存字节数
+     */
+    public long getAllocatedBytes() {
+        return storage.getAllocatedBytes();
+    }
+}
@@ -0,0 +1,223 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.DataHolder;
+
+/**
+ * 沿叶子节点链表顺序/逆序遍历的游标.
+ * <p>
+ * seek 只从根节点查找一次, 之后的 next/prev 通过 leftPointer/rightPointer 直接移动到相邻叶子节点.
+ * 当前元素的 key/value 在读锁内取出, 读锁释放之后叶子可能被写操作原地修改, 所以 next/prev 时树被修改过
+ * 就从上次的 key 重新查找, 不会重复或跳过元素.
+ * 连续沿 rightPointer 移动几次之后认为是顺序扫描, 让树在后台预读之后的叶子.
+ */
+public class Cursor<K extends DataHolder<K>, V extends DataHolder<V>> {
+
+    private final BPlusTree<K, V> tree;
+
+    private LeafNode<K, V> leaf;
+
+    private int index;
+
+    //当前元素, 在读锁内从叶子中取出
+    private K key;
+
+    private V value;
+
+    //取出当前元素时树的修改次数
+    private long modCount;
+
+    //连续移动到右边叶子的次数, 达到它时开始预读
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private int sequentialMoves;
+
+    //上次预读的叶子中还没有走到的个数
+    private int readaheadRemaining;
+
+    protected Cursor(BPlusTree<K, V> tree) {
+        this.tree = tree;
+    }
+
+    //----------------------------  定位 -----------------------------//
+
+    /**
+     * 定位到第一个 >= key 的元素
+     *
+     * @return 是否存在这样的元素
+     */
+    public boolean seek(K key) {
+        if (key == null) {
+            return first();
+        }
+        tree.lock.readLock().lock();
+        try {
+            if (tree.isEmpty()) {
+                return invalidate();
+            }
+            resetSequential();
+            leaf = tree.findLeafNode(key, null);
+            if (leaf == null) {
+                return invalidate();
+            }
+            int i = leaf.binarySearch(key);
+            index = i < 0 ? (-i) - 1 : i;
+            return forward() && current();
+        } finally {
+            tree.releaseNodes();
+            tree.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 定位到最小的元素
+     */
+    public boolean first() {
+        return moveTo(true);
+    }
+
+    /**
+     * 定位到最大的元素
+     */
+    public boolean last() {
+        return moveTo(false);
+    }
+
+    private boolean moveTo(boolean head) {
+        tree.lock.readLock().lock();
+        try {
+            long pointer = head ? tree.headPointer : tree.lastPointer;
+            if (tree.isEmpty() || pointer == 0) {
+                return invalidate();
+            }
+            resetSequential();
+            leaf = (LeafNode<K, V>) tree.getNode(pointer);
+            index = head ? 0 : leaf.allocated - 1;
+            return (head ? forward() : backward()) && current();
+        } finally {
+            tree.releaseNodes();
+            tree.lock.readLock().unlock();
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  移动 -----------------------------//
+    public boolean next() {
+        if (leaf == null) {
+            return false;
+        }
+        tree.lock.readLock().lock();
+        try {
+            if (modCount != tree.modCount && !reseek()) {
+                return invalidate();
+            }
+            index++;
+            return forward() && current();
+        } finally {
+            tree.releaseNodes();
+            tree.lock.readLock().unlock();
+        }
+    }
+
+    public boolean prev() {
+        if (leaf == null) {
+            return false;
+        }
+        tree.lock.readLock().lock();
+        try {
+            if (modCount != tree.modCount && !reseek()) {
+                return invalidate();
+            }
+            index--;
+            return backward() && current();
+        } finally {
+            tree.releaseNodes();
+            tree.lock.readLock().unlock();
+        }
+    }
+
+    // 树被修改过, 从上次取出的 key 重新查找叶子
+    private boolean reseek() {
+        resetSequential();
+        if (tree.isEmpty()) {
+            return false;
+        }
+        leaf = tree.findLeafNode(key, null);
+        if (leaf == null) {
+            return false;
+        }
+        int i = leaf.binarySearch(key);
+        //key 已被删除时停在插入位置之前, 之后的 index++/index-- 分别落在下一个和上一个元素上
+        index = i < 0 ? (-i) - 2 : i;
+        return true;
+    }
+
+    // 在读锁内取出当前元素
+    private boolean current() {
+        key = leaf.key(index);
+        value = leaf.values[index];
+        modCount = tree.modCount;
+        return true;
+    }
+
+    // 当前叶子走完后沿 rightPointer 跳过空叶子
+    private boolean forward() {
+        while (index >= leaf.allocated) {
+            if (leaf.rightPointer == 0) {
+                return invalidate();
+            }
+            leaf = (LeafNode<K, V>) tree.getNode(leaf.rightPointer);
+            index = 0;
+            sequentialMove();
+        }
+        return true;
+    }
+
+    private boolean backward() {
+        while (index < 0) {
+            if (leaf.leftPointer == 0) {
+                return invalidate();
+            }
+            leaf = (LeafNode<K, V>) tree.getNode(leaf.leftPointer);
+            index = leaf.allocated - 1;
+            resetSequential();
+        }
+        return true;
+    }
+
+    // 预读的叶子走过一半时从当前叶子的右边再预读一批
+    private void sequentialMove() {
+        sequentialMoves++;
+        readaheadRemaining--;
+        if (tree.readaheadLeaves > 0 && sequentialMoves >= SEQUENTIAL_THRESHOLD
+                && readaheadRemaining <= tree.readaheadLeaves / 2 && leaf.rightPointer != 0) {
+            tree.readahead(leaf.rightPointer);
+            readaheadRemaining = tree.readaheadLeaves;
+        }
+    }
+
+    private void resetSequential() {
+        sequentialMoves = 0;
+        readaheadRemaining = 0;
+    }
+
+    private boolean invalidate() {
+        leaf = null;
+        index = 0;
+        key = null;
+        value = null;
+        return false;
+    }
+    //-------------------------------------------------------------------//
+
+    public boolean isValid() {
+        return leaf != null;
+    }
+
+    public K key() {
+        return key;
+    }
+
+    public V value() {
+        return value;
+    }
+}
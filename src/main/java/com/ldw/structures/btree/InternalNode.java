@@ -2,26 +2,26 @@ package com.ldw.structures.btree;
 
 import com.ldw.structures.holders.DataHolder;
 
+import java.nio.ByteBuffer;
+
 public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> extends Node<K, V> {
-    public int[] childs;
-    public K[] keys;
-    public int allocated;
+    public long[] childs;
 
     protected InternalNode(BPlusTree<K, V> tree) {
         super(tree);
-        this.childs = new int[getBOrder()];
+        this.childs = new long[getBOrder() + 1];
     }
 
 
     @Override
     public Node<K, V> split() {
         InternalNode<K, V> newHigh = tree.createInternalNode();
-        newHigh.allocPointer();
+        newHigh.allocPointer(pointer);
 
-        int mid = allocated / 2;
+        int mid = splitIndex();
         int newSize = allocated - mid;
 
-        System.arraycopy(keys, mid, newHigh.keys, 0, newSize);
+        copyKeys(mid, newHigh, 0, newSize);
         System.arraycopy(childs, mid + 1, newHigh.childs, 0, newSize);
 
         for (int i = mid; i < allocated; i++) {
@@ -30,18 +30,21 @@ public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> exte
         }
         newHigh.allocated = newSize;
         allocated -= newSize;
+        resetSize();
 
         tree.putNode(this);
         tree.putNode(newHigh);
+        tree.internalSplits.inc();
 
         return newHigh;
     }
 
     @Override
     public K splitLeftShiftKeys() {
-        K removed = keys[0];
-        moveElementsLeft(keys, 0);
+        K removed = key(0);
+        moveKeysLeft(0);
         allocated--;
+        resetSize();
 
         keys[allocated] = null;
         childs[allocated + 1] = 0;
@@ -54,8 +57,9 @@ public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> exte
             return false;
         }
 
+        final int before = index < allocated ? entriesBytes(index, index + 2) : -1;
         if (index < allocated) {
-            moveElementsLeft(keys, index);
+            moveKeysLeft(index);
             moveChildsLeft(index);
         }
 
@@ -65,6 +69,41 @@ public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> exte
 
         keys[allocated] = null;
         childs[allocated + 1] = 0;
+        entriesResized(before, index, index + 1);
+
+        return true;
+    }
+
+    /**
+     * 删除 keys[index] 以及它右边的 child childs[index + 1]
+     */
+    public void removeWithRightChild(int index) {
+        final int before = entriesBytes(index, index + 2);
+        if (index < allocated - 1) {
+            moveKeysLeft(index);
+            moveChildsLeft(index + 1);
+        }
+        allocated--;
+        keys[allocated] = null;
+        childs[allocated + 1] = 0;
+        entriesResized(before, index, index + 1);
+    }
+
+    /**
+     * 在 keys[index] 插入 key, 在 childs[index + 1] 插入它右边的 child
+     */
+    public boolean add(int index, K key, long child) {
+        final int before = entriesBytes(index, index + 1);
+        if (index < allocated) {
+            moveKeysRight(index);
+            moveChildsRight(index + 1);
+        }
+
+        allocated++;
+
+        storeKey(index, key);
+        childs[index + 1] = child;
+        entriesResized(before, index, index + 2);
 
         return true;
     }
@@ -74,6 +113,45 @@ public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> exte
         System.arraycopy(childs, srcPos + 1, childs, srcPos, allocated - srcPos);
     }
 
+    // insert child
+    protected void moveChildsRight(final int srcPos) {
+        System.arraycopy(childs, srcPos, childs, srcPos + 1, allocated - srcPos + 1);
+    }
+
+    //----------------------------  序列化 -----------------------------//
+    @Override
+    protected void serializeHeader(ByteBuffer buf) {
+        for (int i = 0; i <= allocated; i++) {
+            buf.putLong(childs[i]);
+        }
+    }
+
+    @Override
+    protected int headerBytes() {
+        //childs[0]
+        return BPlusTree.CHILD_SIZE;
+    }
+
+    @Override
+    protected int elementBytes(int index) {
+        return BPlusTree.CHILD_SIZE;
+    }
+
+    @Override
+    protected void deserializeHeader(ByteBuffer buf) {
+        for (int i = 0; i <= allocated; i++) {
+            childs[i] = buf.getLong();
+        }
+    }
+
+    /**
+     * 从序列化后的内部节点页中读取第 index 个 child
+     */
+    public static long pageChild(final ByteBuffer page, final int index) {
+        return page.getLong(BPlusTree.NODE_HEADER_SIZE + index * BPlusTree.CHILD_SIZE);
+    }
+    //-------------------------------------------------------------------//
+
     @Override
     public boolean isLeaf() {
         return false;
@@ -81,7 +159,7 @@ public class InternalNode<K extends DataHolder<K>, V extends DataHolder<V>> exte
 
     @Override
     public int getBOrder() {
-        return tree.getM() / 2;
+        return tree.getInternalOrder();
     }
 
 }
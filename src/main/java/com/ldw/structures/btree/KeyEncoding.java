@@ -0,0 +1,206 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.BytesKeyHolder;
+import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.holders.LongKeyHolder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 压缩页中 key 区的编码. 压缩页没有 slot 目录, key 按顺序连续存放, 每个 key 相对前一个 key 编码:
+ * <ul>
+ * <li>LongKeyHolder: 第一个 key 按原格式, 之后是与前一个 key 的差值(无符号 varint)</li>
+ * <li>其它: 与前一个 key 的公共前缀长度, 剩余长度(varint), 剩余字节. BytesKeyHolder 使用它给出的字节, 否则使用序列化后的字节</li>
+ * </ul>
+ * 前一个 key 以 (节点, 下标) 指定, 可以是另一个节点中的 key, 用于估算合并或移动元素后的页大小.
+ */
+abstract class KeyEncoding<K extends DataHolder<K>> {
+
+    //编码后的 key 比 maxKeySize 最多多出的字节数
+    static final int MAX_OVERHEAD = 6;
+
+    //编码后的 key 最少占用的字节数
+    static final int MIN_KEY_BYTES = 1;
+
+    static <K extends DataHolder<K>> KeyEncoding<K> of(K factory) {
+        if (factory instanceof LongKeyHolder) {
+            return new Delta<K>(factory);
+        }
+        return new Prefix<K>(factory);
+    }
+
+    /**
+     * node 的第 index 个 key 编码后的字节数, prev 为 null 表示它是页内第一个 key
+     */
+    abstract int keyBytes(Node<K, ?> prev, int prevIndex, Node<K, ?> node, int index);
+
+    abstract void writeKeys(ByteBuffer buf, Node<K, ?> node);
+
+    /**
+     * 读取 node.allocated 个 key
+     */
+    abstract void readKeys(ByteBuffer buf, Node<K, ?> node);
+
+    int keysBytes(Node<K, ?> node) {
+        int bytes = 0;
+        for (int i = 0; i < node.allocated; i++) {
+            bytes += keyBytes(i > 0 ? node : null, i - 1, node, i);
+        }
+        return bytes;
+    }
+
+    //----------------------------  差值编码 -----------------------------//
+    private static final class Delta<K extends DataHolder<K>> extends KeyEncoding<K> {
+
+        private final LongKeyHolder<K> codec;
+
+        private final int width;
+
+        Delta(K factory) {
+            this.codec = BPlusTree.asLongKeyHolder(factory);
+            this.width = factory.byteLength();
+        }
+
+        @Override
+        int keyBytes(Node<K, ?> prev, int prevIndex, Node<K, ?> node, int index) {
+            if (prev == null) {
+                return width;
+            }
+            return varLongLength(node.longKeys[index] - prev.longKeys[prevIndex]);
+        }
+
+        @Override
+        void writeKeys(ByteBuffer buf, Node<K, ?> node) {
+            final long[] keys = node.longKeys;
+            for (int i = 0; i < node.allocated; i++) {
+                if (i == 0) {
+                    codec.writeLongKey(buf, keys[0]);
+                } else {
+                    putVarLong(buf, keys[i] - keys[i - 1]);
+                }
+            }
+        }
+
+        @Override
+        void readKeys(ByteBuffer buf, Node<K, ?> node) {
+            final long[] keys = node.longKeys;
+            for (int i = 0; i < node.allocated; i++) {
+                keys[i] = i == 0 ? codec.readLongKey(buf) : keys[i - 1] + getVarLong(buf);
+            }
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  前缀压缩 -----------------------------//
+    private static final class Prefix<K extends DataHolder<K>> extends KeyEncoding<K> {
+
+        private final K factory;
+
+        //key 实现了 BytesKeyHolder 时用它从字节创建 key, 否则为 null
+        private final BytesKeyHolder<K> bytesCodec;
+
+        Prefix(K factory) {
+            this.factory = factory;
+            this.bytesCodec = asBytesKeyHolder(factory);
+        }
+
+        //holder 总是实现 BytesKeyHolder<自身类型>
+        @SuppressWarnings("unchecked")
+        private static <K> BytesKeyHolder<K> asBytesKeyHolder(K factory) {
+            return factory instanceof BytesKeyHolder ? (BytesKeyHolder<K>) factory : null;
+        }
+
+        private byte[] bytes(K key) {
+            if (key instanceof BytesKeyHolder) {
+                return ((BytesKeyHolder<?>) key).toKeyBytes();
+            }
+            final ByteBuffer buf = ByteBuffer.allocate(key.byteLength());
+            key.serialize(buf);
+            return buf.array();
+        }
+
+        private K key(byte[] bytes, int length) {
+            if (bytesCodec != null) {
+                return bytesCodec.fromKeyBytes(bytes, 0, length);
+            }
+            return factory.deserialize(ByteBuffer.wrap(bytes, 0, length));
+        }
+
+        @Override
+        int keyBytes(Node<K, ?> prev, int prevIndex, Node<K, ?> node, int index) {
+            final byte[] current = bytes(node.key(index));
+            final int shared = prev == null ? 0 : sharedPrefix(bytes(prev.key(prevIndex)), current);
+            final int suffix = current.length - shared;
+            return varLongLength(shared) + varLongLength(suffix) + suffix;
+        }
+
+        @Override
+        void writeKeys(ByteBuffer buf, Node<K, ?> node) {
+            byte[] prev = null;
+            for (int i = 0; i < node.allocated; i++) {
+                final byte[] current = bytes(node.key(i));
+                final int shared = prev == null ? 0 : sharedPrefix(prev, current);
+                putVarLong(buf, shared);
+                putVarLong(buf, current.length - shared);
+                buf.put(current, shared, current.length - shared);
+                prev = current;
+            }
+        }
+
+        @Override
+        void readKeys(ByteBuffer buf, Node<K, ?> node) {
+            byte[] current = new byte[64];
+            for (int i = 0; i < node.allocated; i++) {
+                final int shared = (int) getVarLong(buf);
+                final int suffix = (int) getVarLong(buf);
+                if (shared + suffix > current.length) {
+                    current = Arrays.copyOf(current, Math.max(shared + suffix, current.length * 2));
+                }
+                buf.get(current, shared, suffix);
+                node.setKey(i, key(current, shared + suffix));
+            }
+        }
+
+        private static int sharedPrefix(byte[] a, byte[] b) {
+            final int len = Math.min(a.length, b.length);
+            int i = 0;
+            while (i < len && a[i] == b[i]) {
+                i++;
+            }
+            return i;
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  varint -----------------------------//
+    static int varLongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buf) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+    //-------------------------------------------------------------------//
+}
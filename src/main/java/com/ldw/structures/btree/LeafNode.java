@@ -3,12 +3,13 @@ package com.ldw.structures.btree;
 import com.ldw.structures.holders.DataHolder;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 
 public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends Node<K, V> {
     public V[] values;
 
-    public int leftPointer = 0;
-    public int rightPointer = 0;
+    public long leftPointer = 0;
+    public long rightPointer = 0;
 
     protected LeafNode(BPlusTree<K, V> tree) {
         super(tree);
@@ -18,12 +19,12 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
     @Override
     public Node<K, V> split() {
         LeafNode<K, V> newHigh = tree.createLeafNode();
-        newHigh.allocPointer();
+        newHigh.allocPointer(pointer);
 
-        int mid = allocated / 2;
+        int mid = splitIndex();
         int newSize = allocated - mid;
 
-        System.arraycopy(keys, mid, newHigh.keys, 0, newSize);
+        copyKeys(mid, newHigh, 0, newSize);
         System.arraycopy(values, mid, newHigh.values, 0, newSize);
 
         for (int i = mid; i < allocated; i++) {
@@ -32,6 +33,7 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
         }
         newHigh.allocated = newSize;
         allocated -= newSize;
+        resetSize();
 
         if (rightPointer != 0) {
             LeafNode<K, V> oldHigh = (LeafNode<K, V>) tree.getNode(rightPointer);
@@ -43,19 +45,20 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
         newHigh.rightPointer = rightPointer;
         rightPointer = newHigh.pointer;
 
-        if (leftPointer == 0) {
-            tree.high = newHigh.pointer;
+        if (newHigh.rightPointer == 0) {
+            tree.lastPointer = newHigh.pointer;
         }
 
         tree.putNode(this);
         tree.putNode(newHigh);
+        tree.leafSplits.inc();
 
         return newHigh;
     }
 
     @Override
     public K splitLeftShiftKeys() {
-        return keys[0];
+        return key(0);
     }
 
     @Override
@@ -64,8 +67,9 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
             return false;
         }
 
+        final int before = index < allocated ? entriesBytes(index, index + 2) : -1;
         if (index < allocated) {
-            moveElementsLeft(keys, index);
+            moveKeysLeft(index);
             moveElementsLeft(values, index);
         }
 
@@ -75,6 +79,7 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
 
         keys[allocated] = null;
         values[allocated] = null;
+        entriesResized(before, index, index + 1);
         return true;
     }
 
@@ -85,19 +90,79 @@ public class LeafNode<K extends DataHolder<K>, V extends DataHolder<V>> extends
 
     @Override
     public int getBOrder() {
-        return tree.getM() / 2;
+        return tree.getLeafOrder();
     }
 
+    //----------------------------  序列化 -----------------------------//
+    @Override
+    protected void serializeHeader(ByteBuffer buf) {
+        buf.putLong(leftPointer);
+        buf.putLong(rightPointer);
+    }
+
+    @Override
+    protected void serializeValues(ByteBuffer buf, int valueDirectory) {
+        for (int i = 0; i < allocated; i++) {
+            if (valueDirectory >= 0) {
+                buf.putChar(valueDirectory + i * 2, (char) buf.position());
+            }
+            values[i].serialize(buf);
+        }
+    }
+
+    @Override
+    protected int headerBytes() {
+        return 16;
+    }
+
+    @Override
+    protected int elementBytes(int index) {
+        return values[index].byteLength();
+    }
+
+    @Override
+    protected int getDirectorySlots() {
+        return 2;
+    }
+
+    @Override
+    protected void deserializeHeader(ByteBuffer buf) {
+        leftPointer = buf.getLong();
+        rightPointer = buf.getLong();
+    }
+
+    @Override
+    protected void deserializeValues(ByteBuffer buf) {
+        V v = tree.factoryV();
+        for (int i = 0; i < allocated; i++) {
+            values[i] = v.deserialize(buf);
+        }
+    }
+
+    /**
+     * 从序列化后的叶子页中只反序列化第 index 个 value
+     */
+    public static <V extends DataHolder<V>> V pageValue(final ByteBuffer page, final int index, final V factory) {
+        final int allocated = page.getInt(BPlusTree.ALLOCATED_OFFSET);
+        final int valueDirectory = BPlusTree.LEAF_HEADER_SIZE + allocated * 2;
+        final ByteBuffer in = page.duplicate();
+        in.position(page.getChar(valueDirectory + index * 2));
+        return factory.deserialize(in);
+    }
+    //-------------------------------------------------------------------//
+
     public boolean add(int index, K key, V val) {
+        final int before = entriesBytes(index, index + 1);
         if (index < allocated) {
-            moveElementsRight(keys, index);
+            moveKeysRight(index);
             moveElementsRight(values, index);
         }
 
         allocated++;
 
-        keys[index] = key;
+        storeKey(index, key);
         values[index] = val;
+        entriesResized(before, index, index + 2);
 
         return true;
     }
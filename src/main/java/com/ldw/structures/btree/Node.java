@@ -1,6 +1,8 @@
 package com.ldw.structures.btree;
 
 import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.holders.LongKeyHolder;
+import com.ldw.structures.store.Crc32c;
 
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
@@ -9,23 +11,101 @@ import java.util.Arrays;
 public abstract class Node<K extends DataHolder<K>, V extends DataHolder<V>> {
     public BPlusTree<K, V> tree;
 
-    public K[] keys;
+    /**
+     * key 是 LongKeyHolder 时以 longKeys 为准, keys 中的对象在第一次 {@link #key(int)} 时才创建.
+     * 读线程只持有读锁, 不能直接填入共享的数组: 在副本中解码全部 key 后整体替换, volatile 写保证其它线程
+     * 看到的是完整的数组. 写操作持有写锁, 可以直接修改
+     */
+    public volatile K[] keys;
 
-    public int pointer = 0;
+    protected long[] longKeys;
+
+    //所在的块号
+    public long pointer = 0;
     public int allocated = 0;
 
     protected Node(BPlusTree<K, V> tree) {
         this.tree = tree;
-        this.keys = (K[]) Array.newInstance(tree.factoryK().getClass(), tree.getM());
+        this.keys = (K[]) Array.newInstance(tree.factoryK().getClass(), getBOrder());
+        if (tree.isLongKeys()) {
+            this.longKeys = new long[getBOrder()];
+        }
+    }
+
+    public long allocPointer() {
+        return allocPointer(0);
     }
 
-    public int allocPointer() {
-        pointer = tree.allocNode(isLeaf());
+    public long allocPointer(long nearPointer) {
+        pointer = tree.allocNode(isLeaf(), nearPointer);
         return pointer;
     }
 
 
+    //----------------------------  读写 key -----------------------------//
+    public K key(int index) {
+        final K[] current = keys;
+        K key = current[index];
+        if (key == null && longKeys != null && index < allocated) {
+            //并发读取时可能重复解码, 得到的数组是等价的
+            final K[] decoded = current.clone();
+            final LongKeyHolder<K> codec = tree.longKeyCodec();
+            for (int i = 0; i < allocated; i++) {
+                if (decoded[i] == null) {
+                    decoded[i] = codec.fromLongKey(longKeys[i]);
+                }
+            }
+            keys = decoded;
+            key = decoded[index];
+        }
+        return key;
+    }
+
+    public void setKey(int index, K key) {
+        final int before = entriesBytes(index, index + 2);
+        storeKey(index, key);
+        entriesResized(before, index, index + 2);
+    }
+
+    /**
+     * 只写入 key, 由调用者维护压缩页大小
+     */
+    protected void storeKey(int index, K key) {
+        keys[index] = key;
+        if (longKeys != null) {
+            longKeys[index] = ((LongKeyHolder<?>) key).toLongKey();
+        }
+    }
+
+    protected void moveKeysLeft(int srcPos) {
+        moveElementsLeft(keys, srcPos);
+        if (longKeys != null) {
+            System.arraycopy(longKeys, srcPos + 1, longKeys, srcPos, allocated - srcPos - 1);
+        }
+    }
+
+    protected void moveKeysRight(int srcPos) {
+        moveElementsRight(keys, srcPos);
+        if (longKeys != null) {
+            System.arraycopy(longKeys, srcPos, longKeys, srcPos + 1, allocated - srcPos);
+        }
+    }
+
+    /**
+     * 把 [srcPos, srcPos + length) 的 key 复制到 dest 的 destPos 开始处
+     */
+    protected void copyKeys(int srcPos, Node<K, V> dest, int destPos, int length) {
+        System.arraycopy(keys, srcPos, dest.keys, destPos, length);
+        if (longKeys != null) {
+            System.arraycopy(longKeys, srcPos, dest.longKeys, destPos, length);
+        }
+    }
+    //-------------------------------------------------------------------//
+
     public int binarySearch(K key) {
+        if (longKeys != null) {
+            return binarySearch(((LongKeyHolder<?>) key).toLongKey());
+        }
         int low = 0, high = allocated - 1;
 
         while (low <= high) {
@@ -44,6 +124,24 @@ public abstract class Node<K extends DataHolder<K>, V extends DataHolder<V>> {
         return -(low + 1);
     }
 
+    private int binarySearch(long key) {
+        int low = 0, high = allocated - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midVal = longKeys[mid];
+
+            if (midVal < key) {
+                low = mid + 1;
+            } else if (midVal > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     //----------------------------  分裂节点 -----------------------------//
 
     public abstract Node<K, V> split();
@@ -73,25 +171,33 @@ public abstract class Node<K extends DataHolder<K>, V extends DataHolder<V>> {
 
     protected void delete() {
         clear();
-        allocated = Integer.MAX_VALUE;
+        allocated = Integer.MIN_VALUE;
     }
 
 
     private void clear() {
         Arrays.fill(keys, null);
         allocated = 0;
+        resetSize();
     }
     //-------------------------------------------------------------------//
 
     //----------------------------  判断方法 -----------------------------//
     abstract public boolean isLeaf();
 
-    public static boolean isLeaf(int pointer) {
-        return pointer > 0;
+    /**
+     * 序列化后的页是否是叶子节点
+     */
+    public static boolean isLeafPage(ByteBuffer page) {
+        return (page.getInt(BPlusTree.FLAGS_OFFSET) & BPlusTree.LEAF_FLAG) != 0;
     }
 
     public boolean isFull() {
-        return allocated >= keys.length;
+        if (allocated >= keys.length) {
+            return true;
+        }
+        //压缩页的元素个数不固定, 按编码后的大小判断
+        return tree.keyEncoding() != null && pageSize() > tree.getBlockSize();
     }
 
     public boolean isEmpty() {
@@ -105,23 +211,175 @@ public abstract class Node<K extends DataHolder<K>, V extends DataHolder<V>> {
 
     public abstract int getBOrder();
 
+    //----------------------------  页大小 -----------------------------//
+
+    /**
+     * 压缩页序列化后的字节数, 小于 0 表示需要在下次 {@link #pageSize()} 时重新计算.
+     * add/remove/setKey 只重算受影响的几个元素, 其它修改(分裂, 反序列化)置为 -1
+     */
+    private int encodedSize = -1;
+
+    /**
+     * 序列化后的字节数
+     */
+    public int pageSize() {
+        final KeyEncoding<K> encoding = tree.keyEncoding();
+        if (encoding != null) {
+            if (encodedSize < 0) {
+                int size = BPlusTree.NODE_HEADER_SIZE + headerBytes() + encoding.keysBytes(this);
+                for (int i = 0; i < allocated; i++) {
+                    size += elementBytes(i);
+                }
+                encodedSize = size;
+            }
+            return encodedSize;
+        }
+        int size = BPlusTree.NODE_HEADER_SIZE + headerBytes() + allocated * 2 * getDirectorySlots();
+        for (int i = 0; i < allocated; i++) {
+            size += longKeys != null ? tree.factoryK().byteLength() : keys[i].byteLength();
+            size += elementBytes(i);
+        }
+        return size;
+    }
+
+    /**
+     * 压缩页中 [from, to) 的元素占用的字节数, 超出 allocated 的部分不计. 页大小未知时不需要计算, 返回 0
+     */
+    protected final int entriesBytes(int from, int to) {
+        if (encodedSize < 0) {
+            return 0;
+        }
+        int bytes = 0;
+        for (int i = Math.max(from, 0); i < Math.min(to, allocated); i++) {
+            bytes += entryBytes(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * 修改元素后更新压缩页大小. before 是修改前 entriesBytes(from, ...) 的结果, [from, to) 是修改后受影响的元素;
+     * before 小于 0 表示无法增量计算
+     */
+    protected final void entriesResized(int before, int from, int to) {
+        if (before < 0) {
+            resetSize();
+        } else if (encodedSize >= 0) {
+            encodedSize += entriesBytes(from, to) - before;
+        }
+    }
+
+    protected final void resetSize() {
+        encodedSize = -1;
+    }
+
+    /**
+     * 第 index 个元素(key 与对应的 value 或 child)在压缩页中占用的字节数
+     */
+    protected int entryBytes(int index) {
+        return tree.keyEncoding().keyBytes(index > 0 ? this : null, index - 1, this, index) + elementBytes(index);
+    }
+
+    /**
+     * 节点头除 pointer/allocated 之外的字节数
+     */
+    protected abstract int headerBytes();
+
+    /**
+     * 第 index 个 key 附带的 value 或 child 的字节数
+     */
+    protected abstract int elementBytes(int index);
+
+    /**
+     * 分裂时留在当前节点的元素个数. 压缩页按编码后的字节数取中点, 两边至少各留一个元素
+     */
+    protected int splitIndex() {
+        if (tree.keyEncoding() == null) {
+            return allocated / 2;
+        }
+        int total = 0;
+        for (int i = 0; i < allocated; i++) {
+            total += entryBytes(i);
+        }
+        int left = 0;
+        for (int mid = 1; mid < allocated - 1; mid++) {
+            left += entryBytes(mid - 1);
+            if (left * 2 >= total) {
+                return mid;
+            }
+        }
+        return allocated - 1;
+    }
+    //-------------------------------------------------------------------//
+
+    /**
+     * 页格式:
+     * <pre>
+     * | pointer | allocated | checksum | flags | 节点头(叶子: left/right, 内部: childs) | slot 目录 | key 区 | (叶子: value 区) |
+     * </pre>
+     * pointer 以及 left/right/childs 都是 8 字节的块号, 节点类型记录在 flags 中.
+     * 页中剩余的字节填 0, checksum 是整页(checksum 字段按 0 计)的 CRC32C.
+     * slot 目录中每个 key(以及叶子节点的每个 value)占一个 2 字节的页内偏移, 用于在页内直接定位第 i 个元素.
+     * 开启 key 压缩时没有 slot 目录, key 区由 {@link KeyEncoding} 编码.
+     */
     public void serialize(ByteBuffer buf) {
         buf.clear();
-        buf.putInt(pointer);
+        buf.putLong(pointer);
         buf.putInt(allocated);
+        buf.putInt(0);
+        buf.putInt(isLeaf() ? BPlusTree.LEAF_FLAG : 0);
+        serializeHeader(buf);
+        serializeBody(buf);
+        //剩余部分清零, 页的内容只由节点决定
+        while (buf.remaining() >= 8) {
+            buf.putLong(0);
+        }
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        buf.putInt(BPlusTree.CHECKSUM_OFFSET, pageChecksum(buf));
+    }
 
+    private void serializeBody(ByteBuffer buf) {
+        final KeyEncoding<K> encoding = tree.keyEncoding();
+        if (encoding != null) {
+            //压缩页没有 slot 目录
+            encoding.writeKeys(buf, this);
+            serializeValues(buf, -1);
+            return;
+        }
+        final int keyDirectory = buf.position();
+        buf.position(keyDirectory + allocated * 2 * getDirectorySlots());
+        final LongKeyHolder<K> codec = tree.longKeyCodec();
         for (int i = 0; i < allocated; i++) {
-            keys[i].serialize(buf);
+            buf.putChar(keyDirectory + i * 2, (char) buf.position());
+            if (codec != null) {
+                codec.writeLongKey(buf, longKeys[i]);
+            } else {
+                keys[i].serialize(buf);
+            }
         }
+        serializeValues(buf, keyDirectory + allocated * 2);
+    }
+
+    protected abstract void serializeHeader(ByteBuffer buf);
+
+    protected void serializeValues(ByteBuffer buf, int valueDirectory) {
+    }
+
+    /**
+     * 每个元素在 slot 目录中占用的偏移个数
+     */
+    protected int getDirectorySlots() {
+        return 1;
     }
 
     public static <K extends DataHolder<K>, V extends DataHolder<V>> Node<K, V> deserialize(
             final ByteBuffer buf, final BPlusTree<K, V> tree) {
-        final int pointer = buf.getInt();
+        final long pointer = buf.getLong();
         if (pointer == 0) {
             throw new RuntimeException("Invalid Node pointer=0");
         }
-        boolean isLeaf = isLeaf(pointer);
+        boolean isLeaf = isLeafPage(buf);
         Node<K, V> node = (isLeaf ? tree.createLeafNode() : tree.createInternalNode());
         node.pointer = pointer;
         return node.deserializeNode(buf);
@@ -130,10 +388,93 @@ public abstract class Node<K extends DataHolder<K>, V extends DataHolder<V>> {
     protected Node<K, V> deserializeNode(final ByteBuffer buf) {
         K k = tree.factoryK();
         allocated = buf.getInt();
-        for (int i = 0; i < allocated; i++) {
-            keys[i] = k.deserialize(buf);
+        resetSize();
+        //checksum, flags
+        buf.getInt();
+        buf.getInt();
+        deserializeHeader(buf);
+        final KeyEncoding<K> encoding = tree.keyEncoding();
+        if (encoding != null) {
+            encoding.readKeys(buf, this);
+            deserializeValues(buf);
+            return this;
+        }
+        //key 在页内是连续存放的, 顺序读取时跳过 slot 目录即可
+        buf.position(buf.position() + allocated * 2 * getDirectorySlots());
+        if (longKeys != null) {
+            final LongKeyHolder<K> codec = tree.longKeyCodec();
+            for (int i = 0; i < allocated; i++) {
+                longKeys[i] = codec.readLongKey(buf);
+            }
+        } else {
+            for (int i = 0; i < allocated; i++) {
+                keys[i] = k.deserialize(buf);
+            }
         }
+        deserializeValues(buf);
         return this;
     }
 
+    protected abstract void deserializeHeader(ByteBuffer buf);
+
+    //----------------------------  校验和 -----------------------------//
+    private static final ByteBuffer ZERO_INT = ByteBuffer.allocate(4);
+
+    /**
+     * 整页的 CRC32C, checksum 字段按 0 计算
+     */
+    public static int pageChecksum(final ByteBuffer page) {
+        int crc = Crc32c.update(~0, page, 0, BPlusTree.CHECKSUM_OFFSET);
+        crc = Crc32c.update(crc, ZERO_INT, 0, 4);
+        return ~Crc32c.update(crc, page, BPlusTree.CHECKSUM_OFFSET + 4, page.capacity());
+    }
+
+    /**
+     * 检查从存储读出的节点页: 校验和一致, 页头的 pointer 与读取的 pointer 相同
+     *
+     * @throws RuntimeException 页已损坏
+     */
+    public static void checkPage(final ByteBuffer page, final long pointer) {
+        final int stored = page.getInt(BPlusTree.CHECKSUM_OFFSET);
+        final int actual = pageChecksum(page);
+        if (stored != actual) {
+            throw new RuntimeException("Checksum mismatch in block " + pointer + ": stored="
+                    + Integer.toHexString(stored) + " actual=" + Integer.toHexString(actual));
+        }
+        if (page.getLong(0) != pointer) {
+            throw new RuntimeException("Invalid Node pointer=" + page.getLong(0) + " in block " + pointer);
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  页内查找 -----------------------------//
+
+    /**
+     * 直接在序列化后的页上二分查找, 只比较经过的 key, 不反序列化节点. 返回值与 binarySearch 相同
+     */
+    public static <K extends DataHolder<K>> int pageBinarySearch(final ByteBuffer page, final K key) {
+        final int allocated = page.getInt(BPlusTree.ALLOCATED_OFFSET);
+        final int keyDirectory = isLeafPage(page) ? BPlusTree.LEAF_HEADER_SIZE
+                : BPlusTree.NODE_HEADER_SIZE + (allocated + 1) * BPlusTree.CHILD_SIZE;
+        int low = 0, high = allocated - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = -key.compareToSerialized(page, page.getChar(keyDirectory + mid * 2));
+
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -(low + 1);
+    }
+    //-------------------------------------------------------------------//
+
+    protected void deserializeValues(ByteBuffer buf) {
+    }
+
 }
@@ -0,0 +1,157 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.DataHolder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 已反序列化节点的 CLOCK(second chance) 缓存.
+ * <p>
+ * 读操作可以并发地 get/put, 命中时只设置访问标记, 不需要加锁. 写操作在树的写锁内独占进行,
+ * 一次写操作中取到的节点都视为被钉住, 只在 {@link #trim()} 时才会被淘汰,
+ * 保证同一个 pointer 在一次操作内只对应一个 Node 对象. 被 putNode 修改过的节点标记为脏,
+ * 由 releaseNodes 统一写回.
+ * <p>
+ * 并发约定: 读线程(持有树的读锁)只调用 get/put/trim, nodes 是 ConcurrentHashMap, trim 由 trimLock 互斥;
+ * dirtyNodes 和 markDirty/drainDirty/remove/clear 只在持有写锁时使用, 读锁与写锁互斥, 读线程在 trim
+ * 中读取 dirtyNodes 时不会有并发的修改.
+ */
+public class NodeCache<K extends DataHolder<K>, V extends DataHolder<V>> {
+
+    private final int capacity;
+
+    private final ConcurrentHashMap<Long, Entry<K, V>> nodes;
+
+    //只在持有树的写锁时修改
+    private final LinkedHashMap<Long, Node<K, V>> dirtyNodes = new LinkedHashMap<>();
+
+    private final ReentrantLock trimLock = new ReentrantLock();
+
+    private static class Entry<K extends DataHolder<K>, V extends DataHolder<V>> {
+        final Node<K, V> node;
+        volatile boolean referenced = true;
+
+        Entry(Node<K, V> node) {
+            this.node = node;
+        }
+    }
+
+    public NodeCache(int capacity) {
+        this.capacity = capacity;
+        this.nodes = new ConcurrentHashMap<>(Math.max(16, capacity));
+    }
+
+    //----------------------------  查找节点 -----------------------------//
+    public Node<K, V> get(long pointer) {
+        Entry<K, V> entry = nodes.get(pointer);
+        if (entry == null) {
+            return null;
+        }
+        entry.referenced = true;
+        return entry.node;
+    }
+
+    /**
+     * 放入从存储中加载的节点, 并发加载同一个节点时以先放入的为准
+     *
+     * @return 缓存中的节点
+     */
+    public Node<K, V> put(Node<K, V> node) {
+        if (capacity <= 0) {
+            return node;
+        }
+        Entry<K, V> old = nodes.putIfAbsent(node.pointer, new Entry<K, V>(node));
+        return old == null ? node : old.node;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  脏节点 -----------------------------//
+    public void markDirty(Node<K, V> node) {
+        Long index = node.pointer;
+        dirtyNodes.put(index, node);
+        if (!node.isDeleted()) {
+            Entry<K, V> entry = nodes.get(index);
+            if (entry == null || entry.node != node) {
+                nodes.put(index, new Entry<K, V>(node));
+            }
+        }
+    }
+
+    public boolean hasDirty() {
+        return !dirtyNodes.isEmpty();
+    }
+
+    /**
+     * 取出并清空当前所有脏节点, 已删除的节点同时从缓存中移除
+     */
+    public List<Node<K, V>> drainDirty() {
+        List<Node<K, V>> list = new ArrayList<>(dirtyNodes.values());
+        dirtyNodes.clear();
+        for (Node<K, V> node : list) {
+            if (node.isDeleted()) {
+                nodes.remove(node.pointer);
+            }
+        }
+        return list;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  淘汰节点 -----------------------------//
+
+    /**
+     * 淘汰没有访问标记的干净节点, 直到缓存大小不超过 capacity.
+     * 有访问标记的节点清除标记后获得第二次机会. 已经有其它线程在淘汰时直接返回.
+     */
+    public void trim() {
+        int overflow = nodes.size() - capacity;
+        if (overflow <= 0 || !trimLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int pass = 0; pass < 2 && overflow > 0; pass++) {
+                Iterator<Map.Entry<Long, Entry<K, V>>> it = nodes.entrySet().iterator();
+                while (overflow > 0 && it.hasNext()) {
+                    Map.Entry<Long, Entry<K, V>> entry = it.next();
+                    if (dirtyNodes.containsKey(entry.getKey())) {
+                        continue;
+                    }
+                    if (entry.getValue().referenced) {
+                        entry.getValue().referenced = false;
+                        continue;
+                    }
+                    //只移除遍历到的这个节点, 不影响期间被替换的新节点
+                    if (nodes.remove(entry.getKey(), entry.getValue())) {
+                        overflow--;
+                    }
+                }
+            }
+        } finally {
+            trimLock.unlock();
+        }
+    }
+
+    public void remove(long pointer) {
+        nodes.remove(pointer);
+        dirtyNodes.remove(pointer);
+    }
+
+    public void clear() {
+        nodes.clear();
+        dirtyNodes.clear();
+    }
+    //-------------------------------------------------------------------//
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,68 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.DataHolder;
+
+import java.util.Arrays;
+
+/**
+ * 从根节点到叶子节点的查找路径, 记录经过的内部节点以及所走的 child 下标
+ */
+public class NodePath<K extends DataHolder<K>, V extends DataHolder<V>> {
+
+    private InternalNode<K, V>[] nodes;
+
+    private int[] slots;
+
+    private int depth = 0;
+
+    //泛型数组只能以通配类型创建, 数组只在这里读写, 放入的都是 InternalNode<K, V>
+    @SuppressWarnings("unchecked")
+    public NodePath(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.nodes = (InternalNode<K, V>[]) new InternalNode<?, ?>[capacity];
+        this.slots = new int[capacity];
+    }
+
+    public void push(InternalNode<K, V> node, int slot) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            slots = Arrays.copyOf(slots, depth * 2);
+        }
+        nodes[depth] = node;
+        slots[depth] = slot;
+        depth++;
+    }
+
+    public InternalNode<K, V> pop() {
+        InternalNode<K, V> node = nodes[--depth];
+        nodes[depth] = null;
+        return node;
+    }
+
+    /**
+     * 栈顶节点
+     */
+    public InternalNode<K, V> node() {
+        return nodes[depth - 1];
+    }
+
+    /**
+     * 栈顶节点所走的 child 下标
+     */
+    public int slot() {
+        return slots[depth - 1];
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public boolean isEmpty() {
+        return depth == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(nodes, 0, depth, null);
+        depth = 0;
+    }
+}
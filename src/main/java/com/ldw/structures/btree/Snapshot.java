@@ -0,0 +1,156 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.DataHolder;
+import com.ldw.structures.store.SnapshotBlockStore;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 树在某个版本的只读快照, 由 {@link BPlusTreeFile#snapshot()} 创建.
+ * <p>
+ * 快照记录创建时的根节点和版本号, 读取时直接从存储读页并反序列化, 不经过节点缓存, 也不加树的锁.
+ * 之后被覆盖的页的旧内容由存储层保留, 所以快照看到的总是创建时的树. 可以被多个线程同时读取.
+ */
+public class Snapshot<K extends DataHolder<K>, V extends DataHolder<V>> {
+
+    private final BPlusTree<K, V> tree;
+
+    private final SnapshotBlockStore.View view;
+
+    private final long rootPointer;
+
+    private final long headPointer;
+
+    private final int elements;
+
+    private final long version;
+
+    Snapshot(BPlusTree<K, V> tree, SnapshotBlockStore.View view, long rootPointer, long headPointer,
+             int elements, long version) {
+        this.tree = tree;
+        this.view = view;
+        this.rootPointer = rootPointer;
+        this.headPointer = headPointer;
+        this.elements = elements;
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getRootPointer() {
+        return rootPointer;
+    }
+
+    public int size() {
+        return elements;
+    }
+
+    public boolean isEmpty() {
+        return elements == 0;
+    }
+
+    //----------------------------  读取 -----------------------------//
+    private Node<K, V> readNode(long pointer) {
+        final ByteBuffer page = view.read(pointer);
+        if (tree.verifyChecksums) {
+            Node.checkPage(page, pointer);
+        }
+        return Node.deserialize(page, tree);
+    }
+
+    private LeafNode<K, V> findLeafNode(K key) {
+        Node<K, V> node = readNode(rootPointer);
+        while (!node.isLeaf()) {
+            int index = node.binarySearch(key);
+            node = readNode(((InternalNode<K, V>) node).childs[index < 0 ? (-index) - 1 : index + 1]);
+        }
+        return (LeafNode<K, V>) node;
+    }
+
+    public V getKey(K key) {
+        if (key == null || elements == 0) {
+            return null;
+        }
+        LeafNode<K, V> leaf = findLeafNode(key);
+        int index = leaf.binarySearch(key);
+        return index >= 0 ? leaf.values[index] : null;
+    }
+
+    /**
+     * 按升序遍历 [from, to) 范围内的元素, from/to 为 null 表示不限
+     */
+    public Iterator<Map.Entry<K, V>> scan(K from, K to) {
+        if (elements == 0) {
+            return new ScanIterator(null, 0, to);
+        }
+        if (from == null) {
+            return new ScanIterator((LeafNode<K, V>) readNode(headPointer), 0, to);
+        }
+        LeafNode<K, V> leaf = findLeafNode(from);
+        int index = leaf.binarySearch(from);
+        return new ScanIterator(leaf, index < 0 ? (-index) - 1 : index, to);
+    }
+
+    private class ScanIterator implements Iterator<Map.Entry<K, V>> {
+
+        private LeafNode<K, V> leaf;
+
+        private int index;
+
+        private final K to;
+
+        ScanIterator(LeafNode<K, V> leaf, int index, K to) {
+            this.leaf = leaf;
+            this.index = index;
+            this.to = to;
+            forward();
+        }
+
+        //跳到下一个有元素的位置
+        private void forward() {
+            while (leaf != null && index >= leaf.allocated) {
+                leaf = leaf.rightPointer == 0 ? null : (LeafNode<K, V>) readNode(leaf.rightPointer);
+                index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leaf != null && (to == null || leaf.key(index).compareTo(to) < 0);
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(leaf.key(index), leaf.values[index]);
+            index++;
+            forward();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    public boolean isClosed() {
+        return view.isClosed();
+    }
+
+    /**
+     * 释放快照, 只被它引用的旧页被回收. 之后的读取抛出 IllegalStateException
+     */
+    public void close() {
+        view.close();
+    }
+}
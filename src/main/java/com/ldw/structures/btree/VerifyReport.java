@@ -0,0 +1,59 @@
+package com.ldw.structures.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link BPlusTreeFile#verify(int)} 的结果: 损坏的页, 以及兄弟/父子链接等结构问题
+ */
+public class VerifyReport {
+
+    private final int scannedBlocks;
+
+    private final List<Long> brokenBlocks;
+
+    private final List<String> problems;
+
+    VerifyReport(int scannedBlocks, List<Long> brokenBlocks, List<String> problems) {
+        this.scannedBlocks = scannedBlocks;
+        this.brokenBlocks = Collections.unmodifiableList(new ArrayList<Long>(brokenBlocks));
+        this.problems = Collections.unmodifiableList(new ArrayList<String>(problems));
+    }
+
+    /**
+     * 检查过的节点页个数, 不含元数据页, 位图页和空闲块
+     */
+    public int getScannedBlocks() {
+        return scannedBlocks;
+    }
+
+    /**
+     * 校验和不一致或无法解析的块, 按块号排序
+     */
+    public List<Long> getBrokenBlocks() {
+        return brokenBlocks;
+    }
+
+    /**
+     * 所有问题的描述, 包括损坏的块
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    public boolean isOk() {
+        return problems.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("scanned=").append(scannedBlocks).append(" broken=").append(brokenBlocks.size())
+                .append(" problems=").append(problems.size());
+        for (String problem : problems) {
+            sb.append('\n').append(problem);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package com.ldw.structures.holders;
+
+/**
+ * 可以表示为一段字节的 key, 压缩页按这段字节做前缀压缩.
+ * <p>
+ * 字节只用于编码, 不要求其顺序与 compareTo 一致; 排序后相邻 key 的字节公共前缀越长, 压缩效果越好.
+ */
+public interface BytesKeyHolder<T> {
+
+    /**
+     * 返回的数组不能被修改
+     */
+    public byte[] toKeyBytes();
+
+    public T fromKeyBytes(final byte[] bytes, final int offset, final int length);
+}
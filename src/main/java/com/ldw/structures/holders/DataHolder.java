@@ -22,9 +22,24 @@ public abstract class DataHolder<T> implements Comparable<T>, HolderSerializable
 
     // ========= Serialization =========
 
+    /**
+     * 序列化后占用的字节数
+     */
+    abstract public int byteLength();
+
     @Override
     abstract public void serialize(final ByteBuffer buf);
 
     @Override
     abstract public T deserialize(final ByteBuffer buf);
+
+    /**
+     * 与 buf 中 offset 处序列化的值比较, 结果与 compareTo 相同, 不修改 buf 的 position.
+     * 默认先反序列化再比较, 可以直接按字节比较的 holder 应覆盖它以避免创建对象
+     */
+    public int compareToSerialized(final ByteBuffer buf, final int offset) {
+        final ByteBuffer in = buf.duplicate();
+        in.position(offset);
+        return compareTo(deserialize(in));
+    }
 }
@@ -0,0 +1,136 @@
+package com.ldw.structures.holders;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 定长字节数组 holder, 按无符号字节的字典序比较, 序列化时不写长度.
+ * <p>
+ * 宽度由子类决定, 例如 16 字节的 UUID:
+ * <pre>
+ * public final class UuidHolder extends FixedBytesHolder&lt;UuidHolder&gt; {
+ *     public UuidHolder() { super(16); }
+ *     private UuidHolder(byte[] bytes) { super(bytes); }
+ *     protected UuidHolder newHolder(byte[] bytes) { return new UuidHolder(bytes); }
+ * }
+ * </pre>
+ */
+public abstract class FixedBytesHolder<T extends FixedBytesHolder<T>> extends DataHolder<T> implements BytesKeyHolder<T> {
+
+    protected final byte[] value;
+
+    /**
+     * 反序列化需要的无参构造方法应调用它, 内容全为 0
+     */
+    protected FixedBytesHolder(final int width) {
+        this(new byte[width]);
+    }
+
+    protected FixedBytesHolder(final byte[] value) {
+        this.value = value;
+    }
+
+    /**
+     * 用相同宽度的字节创建新的 holder, bytes 不会再被修改
+     */
+    protected abstract T newHolder(final byte[] bytes);
+
+    public T valueOf(final byte[] bytes) {
+        if (bytes.length != value.length) {
+            throw new IllegalArgumentException("expected " + value.length + " bytes, got " + bytes.length);
+        }
+        return newHolder(bytes.clone());
+    }
+
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    public int width() {
+        return value.length;
+    }
+
+    // ========= Basic Object methods =========
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(value);
+    }
+
+    // ========= Comparable =========
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj != null && obj.getClass() == getClass()) {
+            return Arrays.equals(value, ((FixedBytesHolder<?>) obj).value);
+        }
+        return false;
+    }
+
+    @Override
+    public int compareTo(final T another) {
+        final byte[] other = another.value;
+        final int len = Math.min(value.length, other.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (value[i] & 0xFF) - (other[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return value.length - other.length;
+    }
+
+    // ========= Serialization =========
+
+    @Override
+    public int byteLength() {
+        return value.length;
+    }
+
+    @Override
+    public void serialize(final ByteBuffer buf) {
+        buf.put(value);
+    }
+
+    @Override
+    public T deserialize(final ByteBuffer buf) {
+        final byte[] bytes = new byte[value.length];
+        buf.get(bytes);
+        return newHolder(bytes);
+    }
+
+    @Override
+    public int compareToSerialized(final ByteBuffer buf, final int offset) {
+        for (int i = 0; i < value.length; i++) {
+            int cmp = (value[i] & 0xFF) - (buf.get(offset + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    // ========= BytesKeyHolder =========
+
+    @Override
+    public byte[] toKeyBytes() {
+        return value;
+    }
+
+    @Override
+    public T fromKeyBytes(final byte[] bytes, final int offset, final int length) {
+        if (length != value.length) {
+            throw new IllegalArgumentException("expected " + value.length + " bytes, got " + length);
+        }
+        return newHolder(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+}
@@ -0,0 +1,103 @@
+package com.ldw.structures.holders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * int 类型的定长 holder, 序列化为 4 个字节
+ */
+public final class IntHolder extends DataHolder<IntHolder> implements LongKeyHolder<IntHolder> {
+
+    public static final int BYTE_LENGTH = 4;
+
+    private final int value;
+
+    public static IntHolder valueOf(final int value) {
+        return new IntHolder(value);
+    }
+
+    /**
+     * 反序列化需要的无参构造方法
+     */
+    public IntHolder() {
+        this(0);
+    }
+
+    private IntHolder(final int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    // ========= Basic Object methods =========
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value;
+    }
+
+    // ========= Comparable =========
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof IntHolder) {
+            return value == ((IntHolder) obj).value;
+        }
+        return false;
+    }
+
+    @Override
+    public int compareTo(final IntHolder another) {
+        return Integer.compare(value, another.value);
+    }
+
+    // ========= Serialization =========
+
+    @Override
+    public int byteLength() {
+        return BYTE_LENGTH;
+    }
+
+    @Override
+    public void serialize(final ByteBuffer buf) {
+        buf.putInt(value);
+    }
+
+    @Override
+    public IntHolder deserialize(final ByteBuffer buf) {
+        return valueOf(buf.getInt());
+    }
+
+    @Override
+    public int compareToSerialized(final ByteBuffer buf, final int offset) {
+        return Integer.compare(value, buf.getInt(offset));
+    }
+
+    // ========= LongKeyHolder =========
+
+    @Override
+    public long toLongKey() {
+        return value;
+    }
+
+    @Override
+    public IntHolder fromLongKey(final long key) {
+        return valueOf((int) key);
+    }
+
+    @Override
+    public void writeLongKey(final ByteBuffer buf, final long key) {
+        buf.putInt((int) key);
+    }
+
+    @Override
+    public long readLongKey(final ByteBuffer buf) {
+        return buf.getInt();
+    }
+}
@@ -0,0 +1,103 @@
+package com.ldw.structures.holders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * long 类型的定长 holder, 序列化为 8 个字节
+ */
+public final class LongHolder extends DataHolder<LongHolder> implements LongKeyHolder<LongHolder> {
+
+    public static final int BYTE_LENGTH = 8;
+
+    private final long value;
+
+    public static LongHolder valueOf(final long value) {
+        return new LongHolder(value);
+    }
+
+    /**
+     * 反序列化需要的无参构造方法
+     */
+    public LongHolder() {
+        this(0);
+    }
+
+    private LongHolder(final long value) {
+        this.value = value;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    // ========= Basic Object methods =========
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    // ========= Comparable =========
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof LongHolder) {
+            return value == ((LongHolder) obj).value;
+        }
+        return false;
+    }
+
+    @Override
+    public int compareTo(final LongHolder another) {
+        return Long.compare(value, another.value);
+    }
+
+    // ========= Serialization =========
+
+    @Override
+    public int byteLength() {
+        return BYTE_LENGTH;
+    }
+
+    @Override
+    public void serialize(final ByteBuffer buf) {
+        buf.putLong(value);
+    }
+
+    @Override
+    public LongHolder deserialize(final ByteBuffer buf) {
+        return valueOf(buf.getLong());
+    }
+
+    @Override
+    public int compareToSerialized(final ByteBuffer buf, final int offset) {
+        return Long.compare(value, buf.getLong(offset));
+    }
+
+    // ========= LongKeyHolder =========
+
+    @Override
+    public long toLongKey() {
+        return value;
+    }
+
+    @Override
+    public LongHolder fromLongKey(final long key) {
+        return valueOf(key);
+    }
+
+    @Override
+    public void writeLongKey(final ByteBuffer buf, final long key) {
+        buf.putLong(key);
+    }
+
+    @Override
+    public long readLongKey(final ByteBuffer buf) {
+        return buf.getLong();
+    }
+}
@@ -0,0 +1,25 @@
+package com.ldw.structures.holders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 可以无损映射为 long 的定长 key, long 的有符号顺序必须与 compareTo 一致.
+ * <p>
+ * 节点对这类 key 以 long[] 保存, 查找时直接比较 long, 反序列化时也不创建 holder 对象.
+ */
+public interface LongKeyHolder<T> {
+
+    public long toLongKey();
+
+    public T fromLongKey(final long key);
+
+    /**
+     * 按 serialize 的格式写入一个 key
+     */
+    public void writeLongKey(final ByteBuffer buf, final long key);
+
+    /**
+     * 按 deserialize 的格式读取一个 key
+     */
+    public long readLongKey(final ByteBuffer buf);
+}
@@ -23,9 +23,12 @@ import java.nio.ByteBuffer;
  *
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
-public final class StringHolder extends DataHolder<StringHolder> {
+public final class StringHolder extends DataHolder<StringHolder> implements BytesKeyHolder<StringHolder> {
     private final String value;
 
+    //UTF-8 编码, 第一次 toKeyBytes 时生成
+    private byte[] bytes;
+
     public static StringHolder valueOf(final String value) {
         return new StringHolder(value);
     }
@@ -77,6 +80,11 @@ public final class StringHolder extends DataHolder<StringHolder> {
 
     // ========= Serialization =========
 
+    @Override
+    public int byteLength() {
+        return StringSerializer.byteLength(value);
+    }
+
     @Override
     public void serialize(final ByteBuffer buf) {
         StringSerializer.fromStringToBuffer(buf, value);
@@ -87,4 +95,26 @@ public final class StringHolder extends DataHolder<StringHolder> {
         return valueOf(StringSerializer.fromBufferToString(buf));
     }
 
+    @Override
+    public int compareToSerialized(final ByteBuffer buf, final int offset) {
+        return StringSerializer.compareTo(value, buf, offset);
+    }
+
+    // ========= BytesKeyHolder =========
+
+    @Override
+    public byte[] toKeyBytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            b = StringSerializer.toBytes(value);
+            bytes = b;
+        }
+        return b;
+    }
+
+    @Override
+    public StringHolder fromKeyBytes(final byte[] bytes, final int offset, final int length) {
+        return valueOf(StringSerializer.fromBytes(bytes, offset, length));
+    }
+
 }
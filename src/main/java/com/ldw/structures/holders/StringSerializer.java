@@ -36,6 +36,36 @@ public class StringSerializer {
 		out.put(bytes, 0, len);
 	}
 
+	public static final int byteLength(final String str) {
+		if (str == null) {
+			return 4;
+		}
+		int len = 0;
+		for (int i = 0; i < str.length(); i++) {
+			final char c = str.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && (i + 1 < str.length())
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else {
+				len += 3;
+			}
+		}
+		return 4 + len;
+	}
+
+	public static final byte[] toBytes(final String str) {
+		return str.getBytes(cs);
+	}
+
+	public static final String fromBytes(final byte[] bytes, final int offset, final int length) {
+		return new String(bytes, offset, length, cs);
+	}
+
 	public static final String fromBufferToString(final ByteBuffer in) {
 		final int len = in.getInt();
 		if (len == Integer.MIN_VALUE) {
@@ -45,4 +75,55 @@ public class StringSerializer {
 		in.get(bytes, 0, len);
 		return new String(bytes, 0, len, cs);
 	}
+
+	/**
+	 * 与 in 中 offset 处序列化的字符串比较, 结果与 String.compareTo 相同.
+	 * UTF-8 逐个解码成 UTF-16 字符后比较, 不创建对象, 不修改 in 的 position
+	 */
+	public static final int compareTo(final String str, final ByteBuffer in, final int offset) {
+		final int len = in.getInt(offset);
+		if (len == Integer.MIN_VALUE) {
+			return str == null ? 0 : 1;
+		}
+		int pos = offset + 4;
+		final int end = pos + len;
+		final int n = str.length();
+		int i = 0;
+		char low = 0;
+		while (true) {
+			char c;
+			if (low != 0) {
+				c = low;
+				low = 0;
+			} else if (pos < end) {
+				final int b = in.get(pos++) & 0xFF;
+				int cp;
+				if (b < 0x80) {
+					cp = b;
+				} else if (b < 0xE0) {
+					cp = ((b & 0x1F) << 6) | (in.get(pos++) & 0x3F);
+				} else if (b < 0xF0) {
+					cp = ((b & 0x0F) << 12) | ((in.get(pos++) & 0x3F) << 6) | (in.get(pos++) & 0x3F);
+				} else {
+					cp = ((b & 0x07) << 18) | ((in.get(pos++) & 0x3F) << 12) | ((in.get(pos++) & 0x3F) << 6)
+							| (in.get(pos++) & 0x3F);
+				}
+				if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					c = Character.highSurrogate(cp);
+					low = Character.lowSurrogate(cp);
+				} else {
+					c = (char) cp;
+				}
+			} else {
+				return n - i;
+			}
+			if (i == n) {
+				return -1;
+			}
+			final char s = str.charAt(i++);
+			if (s != c) {
+				return s - c;
+			}
+		}
+	}
 }
@@ -0,0 +1,23 @@
+package com.ldw.structures.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 只增不减的计数器. 内部是分段的 LongAdder, 多线程同时累加时没有竞争
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
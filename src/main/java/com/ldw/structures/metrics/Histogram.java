@@ -0,0 +1,64 @@
+package com.ldw.structures.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 2 的幂分桶的直方图, 用于记录耗时等非负值.
+ * <p>
+ * 第 0 桶记录 0, 第 b 桶记录 [2^(b-1), 2^b) 内的值. 记录只做一次 LongAdder 累加和一次 max 的 CAS,
+ * 不加锁. 分位数按桶的上界估算, 误差不超过 2 倍.
+ */
+public final class Histogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[bucketOf(value)].increment();
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 记录从 startNanos 到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * 各个字段分别读取, 并发记录时快照中的 count 与桶的总和可能略有出入
+     */
+    public HistogramSnapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new HistogramSnapshot(count.sum(), sum.sum(), max.get(), counts);
+    }
+}
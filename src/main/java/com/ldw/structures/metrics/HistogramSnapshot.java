@@ -0,0 +1,72 @@
+package com.ldw.structures.metrics;
+
+/**
+ * {@link Histogram} 在某个时刻的只读副本
+ */
+public final class HistogramSnapshot {
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    private final long[] buckets;
+
+    HistogramSnapshot(long count, long sum, long max, long[] buckets) {
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+        this.buckets = buckets;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * 估算的分位数: 累计个数达到 quantile 的桶的上界, 不超过 max
+     *
+     * @param quantile (0, 1]
+     */
+    public long getPercentile(double quantile) {
+        if (quantile <= 0 || quantile > 1) {
+            throw new IllegalArgumentException("invalid quantile: " + quantile);
+        }
+        long total = 0;
+        for (long n : buckets) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                final long upper = b == 0 ? 0 : (b >= 63 ? Long.MAX_VALUE : (1L << b) - 1);
+                return Math.min(upper, max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + (long) getMean() + " p50=" + getPercentile(0.5)
+                + " p99=" + getPercentile(0.99) + " max=" + max;
+    }
+}
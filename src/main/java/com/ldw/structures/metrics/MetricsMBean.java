@@ -0,0 +1,115 @@
+package com.ldw.structures.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把 {@link MetricsRegistry} 暴露为 JMX 属性: 计数器和 gauge 各是一个 Long 属性,
+ * 直方图展开为 name.count / name.mean / name.p50 / name.p99 / name.max. 属性都是只读的, 每次读取时计算
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p99", "max"};
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Object value = valueOf(registry.snapshot(), attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    private static Object valueOf(MetricsSnapshot snapshot, String attribute) {
+        Long value = snapshot.getCounters().get(attribute);
+        if (value == null) {
+            value = snapshot.getGauges().get(attribute);
+        }
+        if (value != null) {
+            return value;
+        }
+        final int dot = attribute.lastIndexOf('.');
+        final HistogramSnapshot histogram = dot < 0 ? null : snapshot.getHistogram(attribute.substring(0, dot));
+        if (histogram == null) {
+            return null;
+        }
+        final String field = attribute.substring(dot + 1);
+        if ("count".equals(field)) {
+            return histogram.getCount();
+        } else if ("mean".equals(field)) {
+            return histogram.getMean();
+        } else if ("p50".equals(field)) {
+            return histogram.getPercentile(0.5);
+        } else if ("p99".equals(field)) {
+            return histogram.getPercentile(0.99);
+        } else if ("max".equals(field)) {
+            return histogram.getMax();
+        }
+        return null;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final MetricsSnapshot snapshot = registry.snapshot();
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            final Object value = valueOf(snapshot, attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final MetricsSnapshot snapshot = registry.snapshot();
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : snapshot.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "counter", true, false, false));
+        }
+        for (String name : snapshot.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "gauge", true, false, false));
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : snapshot.getHistograms().entrySet()) {
+            for (String field : HISTOGRAM_FIELDS) {
+                final String type = "mean".equals(field) ? Double.class.getName() : Long.class.getName();
+                attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + field, type,
+                        "histogram " + field, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "B+tree metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ldw.structures.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 按名字登记的计数器, 直方图和 gauge.
+ * <p>
+ * 同名的指标只创建一次, 热点路径应该保存返回的 {@link Counter}/{@link Histogram} 而不是每次按名字查找.
+ * 指标的当前值可以通过 {@link #snapshot()} 读取, 也可以注册为 JMX MBean, 每个指标是一个只读属性.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    private ObjectName registeredName;
+
+    //----------------------------  登记指标 -----------------------------//
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * 读取时才计算的值, 例如树高. 同名的 gauge 会被替换
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读取 -----------------------------//
+
+    /**
+     * 所有指标当前值的副本, 按名字排序
+     */
+    public MetricsSnapshot snapshot() {
+        final Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        final Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        final Map<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(counterValues, gaugeValues, histogramValues);
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  JMX -----------------------------//
+
+    /**
+     * 注册到平台 MBeanServer, 例如 "com.ldw.structures:type=BPlusTree,name=users".
+     * 已经注册过时先注销旧的名字
+     */
+    public synchronized void registerMBean(String objectName) {
+        unregisterMBean();
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+            registeredName = name;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("register MBean " + objectName + " failed", e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(registeredName)) {
+                server.unregisterMBean(registeredName);
+            }
+        } catch (JMException e) {
+            System.out.println("JMException in unregisterMBean()" + e);
+        }
+        registeredName = null;
+    }
+
+    public synchronized ObjectName getRegisteredName() {
+        return registeredName;
+    }
+    //-------------------------------------------------------------------//
+}
@@ -0,0 +1,66 @@
+package com.ldw.structures.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link MetricsRegistry#snapshot()} 的结果, 只读
+ */
+public final class MetricsSnapshot {
+
+    private final Map<String, Long> counters;
+
+    private final Map<String, Long> gauges;
+
+    private final Map<String, HistogramSnapshot> histograms;
+
+    MetricsSnapshot(Map<String, Long> counters, Map<String, Long> gauges, Map<String, HistogramSnapshot> histograms) {
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * 计数器的值, 没有这个计数器时为 0
+     */
+    public long getCounter(String name) {
+        final Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    public long getGauge(String name) {
+        final Long value = gauges.get(name);
+        return value == null ? 0 : value;
+    }
+
+    public HistogramSnapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
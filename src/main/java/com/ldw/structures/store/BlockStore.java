@@ -0,0 +1,59 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按固定大小的块读写文件的存储层. 块号是 64 位的, 文件大小不受 int 范围限制
+ */
+public interface BlockStore {
+
+    int getBlockSize();
+
+    //----------------------------  打开关闭 -----------------------------//
+    boolean open();
+
+    void close();
+
+    void delete();
+
+    boolean isOpen();
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读写块 -----------------------------//
+
+    /**
+     * 读取块, 返回的 buffer 有独立的 position, 用完后调用 {@link #release(ByteBuffer)}
+     */
+    ByteBuffer get(long index);
+
+    /**
+     * 获取用于写入的块, 写完后调用 {@link WriteBuffer#save()}
+     */
+    WriteBuffer set(long index);
+
+    /**
+     * 保存 set(index) 返回的 buffer 中的内容
+     */
+    boolean save(long index, ByteBuffer buf);
+
+    void release(ByteBuffer buf);
+
+    /**
+     * 提示很快会读取这个块, 实现可以提前把它读入缓存. 只是提示, 块不存在时忽略, 默认什么都不做
+     */
+    default void prefetch(long index) {
+    }
+
+    /**
+     * 把所有写入的块落盘. 落盘失败时抛出 {@link java.io.UncheckedIOException}, 调用方不能认为写入已经持久化
+     */
+    void sync();
+
+    /**
+     * 截断文件, 只保留前 blocks 个块, 之后的块不能再被读写
+     */
+    void truncate(long blocks);
+    //-------------------------------------------------------------------//
+
+    long sizeInBlocks();
+}
@@ -0,0 +1,490 @@
+package com.ldw.structures.store;
+
+import com.ldw.structures.metrics.Counter;
+import com.ldw.structures.metrics.Histogram;
+import com.ldw.structures.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * 基于 FileChannel 定位读写(pread/pwrite)的块存储.
+ * <p>
+ * 块缓存在一个固定大小的 direct buffer 池中, 不依赖操作系统的 page cache 映射.
+ * 池满时按 CLOCK 淘汰没有被使用的帧, 脏帧在淘汰或 sync() 时写回文件.
+ * get/set 返回的 buffer 在 release/save 之前一直被钉住; 所有帧都被钉住时退化为不进池的临时读取.
+ * sync() 把块号连续的脏帧合并成一次 gathering write, 文件长度没有变化时只 force(false).
+ */
+public class ChannelBlockStore implements BlockStore {
+
+    public static final int DEFAULT_POOL_SIZE = 1024;
+
+    public final int blockSize;
+
+    private final int poolSize;
+
+    private File file = null;
+
+    private RandomAccessFile raf = null;
+
+    private FileChannel fileChannel = null;
+
+    private Frame[] frames;
+
+    private final HashMap<Long, Frame> pageTable = new HashMap<>();
+
+    //已经交给调用者的 buffer -> 帧, 用于 release
+    private final IdentityHashMap<ByteBuffer, Frame> handed = new IdentityHashMap<>();
+
+    private int clockHand = 0;
+
+    //写入过但可能还没有到达文件末尾的最大块号
+    private long highestBlock = -1;
+
+    //从文件读入和写回文件的块数
+    private final Counter reads;
+
+    private final Counter writes;
+
+    //sync 写回的连续脏块段数
+    private final Counter flushRuns;
+
+    private final Histogram syncNanos;
+
+    //上次 sync 时的文件长度
+    private long syncedLength = -1;
+
+    //每次有帧写回或截断时加 1, 缺页和 prefetch 在锁外读到的内容期间没有变化才放入池中
+    private long writeEpoch = 0;
+
+    private static class Frame {
+        final ByteBuffer buf;
+        long index = -1;
+        int pins = 0;
+        boolean dirty = false;
+        boolean referenced = false;
+
+        Frame(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    public ChannelBlockStore(final File file, final int blockSize) {
+        this(file, blockSize, DEFAULT_POOL_SIZE);
+    }
+
+    public ChannelBlockStore(final File file, final int blockSize, final int poolSize) {
+        this(file, blockSize, poolSize, new MetricsRegistry());
+    }
+
+    public ChannelBlockStore(final File file, final int blockSize, final int poolSize, final MetricsRegistry metrics) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize <= 0: " + poolSize);
+        }
+        if ((long) poolSize * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("pool too large: " + poolSize + " * " + blockSize + " bytes");
+        }
+        this.file = file;
+        this.blockSize = blockSize;
+        this.poolSize = poolSize;
+        this.reads = metrics.counter("store.read");
+        this.writes = metrics.counter("store.write");
+        this.flushRuns = metrics.counter("store.flush.runs");
+        this.syncNanos = metrics.histogram("store.sync.nanos");
+    }
+
+    //----------------------------  打开文件 -----------------------------//
+    @Override
+    public synchronized boolean open() {
+        if (isOpen()) {
+            close();
+        }
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            fileChannel = raf.getChannel();
+            syncedLength = -1;
+            highestBlock = -1;
+            highestBlock = sizeInBlocks() - 1;
+            if (frames == null) {
+                ByteBuffer pool = ByteBuffer.allocateDirect(poolSize * blockSize);
+                frames = new Frame[poolSize];
+                for (int i = 0; i < poolSize; i++) {
+                    pool.limit((i + 1) * blockSize);
+                    pool.position(i * blockSize);
+                    frames[i] = new Frame(pool.slice());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("IOException in open()" + e);
+            raf = null;
+            fileChannel = null;
+        }
+        return isOpen();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  关闭文件 -----------------------------//
+    @Override
+    public synchronized void close() {
+        if (!isOpen()) {
+            return;
+        }
+        flushDirty();
+        try {
+            fileChannel.close();
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        resetPool();
+        fileChannel = null;
+        raf = null;
+    }
+
+    @Override
+    public synchronized void delete() {
+        if (isOpen()) {
+            resetPool();
+            close();
+        }
+        try {
+            file.delete();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void resetPool() {
+        pageTable.clear();
+        handed.clear();
+        for (Frame frame : frames) {
+            frame.index = -1;
+            frame.pins = 0;
+            frame.dirty = false;
+            frame.referenced = false;
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读写块 -----------------------------//
+    @Override
+    public ByteBuffer get(long index) {
+        final Frame frame = pin(index);
+        synchronized (this) {
+            if (frame == null) {
+                //所有帧都被钉住, 临时读一份
+                ByteBuffer buf = ByteBuffer.allocate(blockSize);
+                read(index, buf);
+                buf.clear();
+                return buf;
+            }
+            ByteBuffer buf = frame.buf.duplicate();
+            buf.clear();
+            handed.put(buf, frame);
+            return buf;
+        }
+    }
+
+    @Override
+    public WriteBuffer set(long index) {
+        final Frame frame = pin(index);
+        if (frame == null) {
+            throw new IllegalStateException("buffer pool exhausted, all " + poolSize + " frames pinned");
+        }
+        synchronized (this) {
+            ByteBuffer buf = frame.buf.duplicate();
+            buf.clear();
+            handed.put(buf, frame);
+            return new WriteBuffer(this, index, buf);
+        }
+    }
+
+    @Override
+    public synchronized boolean save(long index, ByteBuffer buf) {
+        Frame frame = handed.get(buf);
+        if (frame == null || frame.index != index) {
+            return false;
+        }
+        frame.dirty = true;
+        if (index > highestBlock) {
+            highestBlock = index;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void release(ByteBuffer buf) {
+        Frame frame = handed.remove(buf);
+        if (frame != null && frame.pins > 0) {
+            frame.pins--;
+        }
+    }
+
+    /**
+     * 在锁外定位读入块, 再放进一个空闲帧. 读取期间其它线程照常使用池, 块已经在池中时不读
+     */
+    @Override
+    public void prefetch(long index) {
+        final long epoch;
+        synchronized (this) {
+            if (!isOpen() || index < 0 || index > highestBlock || pageTable.containsKey(index)) {
+                return;
+            }
+            epoch = writeEpoch;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        read(index, buf);
+        synchronized (this) {
+            if (!isOpen() || epoch != writeEpoch || pageTable.containsKey(index)) {
+                return;
+            }
+            final Frame frame = evict();
+            if (frame == null) {
+                return;
+            }
+            buf.flip();
+            frame.buf.clear();
+            frame.buf.put(buf);
+            frame.index = index;
+            pageTable.put(index, frame);
+            frame.referenced = true;
+        }
+    }
+
+    /**
+     * 钉住块所在的帧. 池中没有时在锁外定位读入, 缺页的读取不会阻塞其它线程使用池.
+     * 读取期间有帧写回或文件被截断时, 读到的内容可能已经过时, 在锁内重读.
+     * 读取失败时抛出 UncheckedIOException, 帧不会放进池中
+     *
+     * @return 所有帧都被钉住时返回 null
+     */
+    private Frame pin(long index) {
+        final long epoch;
+        synchronized (this) {
+            final Frame frame = pageTable.get(index);
+            if (frame != null) {
+                frame.pins++;
+                frame.referenced = true;
+                return frame;
+            }
+            epoch = writeEpoch;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        read(index, buf);
+        synchronized (this) {
+            Frame frame = pageTable.get(index);
+            if (frame == null) {
+                //evict 写回的是别的块, 先判断读到的内容是否还有效
+                final boolean fresh = epoch == writeEpoch;
+                frame = evict();
+                if (frame == null) {
+                    return null;
+                }
+                frame.buf.clear();
+                if (fresh) {
+                    buf.flip();
+                    frame.buf.put(buf);
+                } else {
+                    read(index, frame.buf);
+                }
+                frame.index = index;
+                pageTable.put(index, frame);
+            }
+            frame.pins++;
+            frame.referenced = true;
+            return frame;
+        }
+    }
+
+    /**
+     * 用 CLOCK 找一个没有被钉住的帧, 脏帧先写回
+     */
+    private Frame evict() {
+        for (int step = 0; step < poolSize * 2; step++) {
+            Frame frame = frames[clockHand];
+            clockHand = (clockHand + 1) % poolSize;
+            if (frame.pins > 0) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (frame.index >= 0) {
+                if (frame.dirty) {
+                    write(frame);
+                }
+                pageTable.remove(frame.index);
+                frame.index = -1;
+            }
+            return frame;
+        }
+        return null;
+    }
+
+    private void read(long index, ByteBuffer buf) {
+        reads.inc();
+        try {
+            long position = index * blockSize;
+            while (buf.hasRemaining()) {
+                int n = fileChannel.read(buf, position);
+                if (n < 0) {
+                    //文件末尾之后的块都是 0
+                    while (buf.hasRemaining()) {
+                        buf.put((byte) 0);
+                    }
+                    break;
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("read block " + index + " of " + file + " failed", e);
+        }
+    }
+
+    private void write(Frame frame) {
+        ByteBuffer buf = frame.buf.duplicate();
+        buf.clear();
+        try {
+            long position = frame.index * blockSize;
+            while (buf.hasRemaining()) {
+                position += fileChannel.write(buf, position);
+            }
+            frame.dirty = false;
+            writeEpoch++;
+            writes.inc();
+        } catch (IOException e) {
+            throw new UncheckedIOException("write block " + frame.index + " of " + file + " failed", e);
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  同步 -----------------------------//
+    @Override
+    public synchronized void sync() {
+        if (!isOpen()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        flushDirty();
+        try {
+            final long length = fileChannel.size();
+            fileChannel.force(length != syncedLength);
+            syncedLength = length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("sync " + file + " failed", e);
+        }
+        syncNanos.recordSince(start);
+    }
+
+    /**
+     * 丢弃被截掉的块在池中的帧, 包括没有写回的脏帧和还被钉住的帧. 被钉住的帧在 release 之前不会被复用,
+     * 对它的 save 会失败
+     */
+    @Override
+    public synchronized void truncate(long blocks) {
+        if (!isOpen()) {
+            return;
+        }
+        writeEpoch++;
+        for (Frame frame : frames) {
+            if (frame.index >= blocks) {
+                pageTable.remove(frame.index);
+                frame.index = -1;
+                frame.dirty = false;
+                frame.referenced = false;
+            }
+        }
+        try {
+            fileChannel.truncate(blocks * blockSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("truncate " + file + " to " + blocks + " blocks failed", e);
+        }
+        highestBlock = blocks - 1;
+    }
+
+    // 按块号顺序写回所有脏帧, 块号连续的一段合并成一次写
+    private void flushDirty() {
+        List<Frame> dirty = new ArrayList<>();
+        for (Frame frame : frames) {
+            if (frame.dirty && frame.index >= 0) {
+                dirty.add(frame);
+            }
+        }
+        Collections.sort(dirty, new Comparator<Frame>() {
+            @Override
+            public int compare(Frame o1, Frame o2) {
+                return Long.compare(o1.index, o2.index);
+            }
+        });
+        int from = 0;
+        for (int i = 1; i <= dirty.size(); i++) {
+            if (i == dirty.size() || dirty.get(i).index != dirty.get(i - 1).index + 1) {
+                writeRun(dirty.subList(from, i));
+                from = i;
+            }
+        }
+    }
+
+    /**
+     * 用 gathering write 写回一段块号连续的脏帧. 读取都是定位读, 只有这里使用 channel 的 position
+     */
+    private void writeRun(List<Frame> run) {
+        if (run.size() == 1) {
+            write(run.get(0));
+            flushRuns.inc();
+            return;
+        }
+        final ByteBuffer[] bufs = new ByteBuffer[run.size()];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = run.get(i).buf.duplicate();
+            bufs[i].clear();
+        }
+        final long first = run.get(0).index;
+        try {
+            fileChannel.position(first * blockSize);
+            long remaining = (long) bufs.length * blockSize;
+            while (remaining > 0) {
+                remaining -= fileChannel.write(bufs);
+            }
+            for (Frame frame : run) {
+                frame.dirty = false;
+            }
+            writeEpoch++;
+            writes.add(run.size());
+            flushRuns.inc();
+        } catch (IOException e) {
+            throw new UncheckedIOException("write blocks from " + first + " of " + file + " failed", e);
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  判断方法 -----------------------------//
+    @Override
+    public boolean isOpen() {
+        return fileChannel != null && fileChannel.isOpen();
+    }
+
+    @Override
+    public synchronized long sizeInBlocks() {
+        final long len = file.length();
+        final long num_blocks = ((len / blockSize) + (((len % blockSize) == 0) ? 0 : 1));
+        return Math.max(num_blocks, highestBlock + 1);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+    //-------------------------------------------------------------------//
+}
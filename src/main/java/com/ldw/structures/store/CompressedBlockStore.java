@@ -0,0 +1,378 @@
+package com.ldw.structures.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 页压缩的块存储, 包装一个以扇区为块大小的物理存储.
+ * <p>
+ * 每个逻辑块用 LZ4 压缩后存放在若干个连续的扇区(物理槽)中, 压不小的块原样存放.
+ * 页转换表记录每个逻辑块的起始扇区和压缩后的长度, 只在 sync() 时整体写入单独的表文件(先写临时文件再改名).
+ * <p>
+ * 表文件中引用的槽在下一次 sync() 之前不会被覆盖或复用: 重写这样的块时写到新的槽, 旧槽等表文件更新后才释放.
+ * 上次 sync() 之后新分配的槽没有被表文件引用, 可以原地覆盖. 因此崩溃后表文件和它引用的数据总是一致的,
+ * 之后的修改由预写日志重放. 内存中的节点缓存保存解压后的节点, 只有缓存未命中时才需要解压.
+ * <p>
+ * 页转换表和扇区位图都在内存中按 int 下标保存, 逻辑块号和扇区号不能超过 int 范围.
+ */
+public class CompressedBlockStore implements BlockStore {
+
+    private static final int TABLE_MAGIC = 0x4C5A5054;
+
+    //每个逻辑块最多占用的扇区数
+    public static final int SECTORS_PER_BLOCK = 8;
+
+    private final BlockStore sectors;
+
+    private final File tableFile;
+
+    private final int blockSize;
+
+    private final int sectorSize;
+
+    //逻辑块 -> 起始扇区
+    private int[] slotSector = new int[0];
+
+    //逻辑块 -> 压缩后的字节数, 0 表示没有写过, 等于 blockSize 表示原样存放
+    private int[] slotLength = new int[0];
+
+    private int blocks = 0;
+
+    private final BitSet usedSectors = new BitSet();
+
+    //上次 sync() 之后才分配槽的逻辑块, 它们的槽不被表文件引用
+    private final BitSet freshBlocks = new BitSet();
+
+    //被表文件引用, 等下一次 sync() 后才能释放的槽: 起始扇区, 扇区数
+    private final List<int[]> pendingFree = new ArrayList<int[]>();
+
+    //写入时复用的压缩缓冲, 写操作由调用者串行化
+    private final byte[] compressBuf;
+
+    private final int[] hashTable = new int[1 << Lz4.HASH_LOG];
+
+    public CompressedBlockStore(final BlockStore sectors, final File tableFile, final int blockSize) {
+        if (sectors.getBlockSize() * SECTORS_PER_BLOCK != blockSize) {
+            throw new IllegalArgumentException("sector size " + sectors.getBlockSize() + " * " + SECTORS_PER_BLOCK
+                    + " != blockSize " + blockSize);
+        }
+        this.sectors = sectors;
+        this.tableFile = tableFile;
+        this.blockSize = blockSize;
+        this.sectorSize = sectors.getBlockSize();
+        this.compressBuf = new byte[blockSize];
+    }
+
+    //----------------------------  打开关闭 -----------------------------//
+    @Override
+    public boolean open() {
+        if (!sectors.open()) {
+            return false;
+        }
+        clearTable();
+        if (!tableFile.exists() && sectors.sizeInBlocks() > 0) {
+            //不是压缩存储写出的文件, 不能当作空文件覆盖
+            sectors.close();
+            throw new RuntimeException("missing page table " + tableFile);
+        }
+        try {
+            if (tableFile.exists()) {
+                loadTable();
+            } else {
+                saveTable();
+            }
+        } catch (IOException e) {
+            sectors.close();
+            throw new RuntimeException("open page table " + tableFile + " failed", e);
+        }
+        return true;
+    }
+
+    /**
+     * 关闭前写入页转换表, 否则上次 sync() 之后的写入会丢失. 写入失败时仍然关闭, 并抛出异常
+     */
+    @Override
+    public void close() {
+        if (!sectors.isOpen()) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            sectors.close();
+            clearTable();
+        }
+    }
+
+    @Override
+    public void delete() {
+        sectors.delete();
+        tableFile.delete();
+        clearTable();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return sectors.isOpen();
+    }
+
+    private void clearTable() {
+        slotSector = new int[0];
+        slotLength = new int[0];
+        blocks = 0;
+        usedSectors.clear();
+        freshBlocks.clear();
+        pendingFree.clear();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  页转换表 -----------------------------//
+    private void loadTable() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile)));
+        try {
+            if (in.readInt() != TABLE_MAGIC || in.readInt() != blockSize) {
+                throw new IOException("invalid page table " + tableFile);
+            }
+            final int count = in.readInt();
+            ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                slotSector[i] = in.readInt();
+                slotLength[i] = in.readInt();
+                if (slotLength[i] > 0) {
+                    usedSectors.set(slotSector[i], slotSector[i] + sectorCount(slotLength[i]));
+                }
+            }
+            blocks = count;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void saveTable() throws IOException {
+        final File tmp = new File(tableFile.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(TABLE_MAGIC);
+            out.writeInt(blockSize);
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeInt(slotSector[i]);
+                out.writeInt(slotLength[i]);
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > slotSector.length) {
+            final int capacity = Math.max(count, slotSector.length * 2);
+            slotSector = Arrays.copyOf(slotSector, capacity);
+            slotLength = Arrays.copyOf(slotLength, capacity);
+        }
+    }
+
+    private int sectorCount(int length) {
+        return (length + sectorSize - 1) / sectorSize;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读写块 -----------------------------//
+
+    /**
+     * 返回解压后的块, 没有写过的块内容全为 0. 可以被多个线程同时调用
+     */
+    @Override
+    public ByteBuffer get(long block) {
+        final int index = checkIndex(block);
+        final byte[] page = new byte[blockSize];
+        final int length = index < blocks ? slotLength[index] : 0;
+        if (length == 0) {
+            return ByteBuffer.wrap(page);
+        }
+        final int first = slotSector[index];
+        if (length == blockSize) {
+            readSectors(first, page, length);
+        } else {
+            final byte[] compressed = new byte[length];
+            readSectors(first, compressed, length);
+            try {
+                Lz4.decompress(compressed, 0, length, page, blockSize);
+            } catch (IllegalStateException e) {
+                throw new RuntimeException("corrupted page " + index, e);
+            }
+        }
+        return ByteBuffer.wrap(page);
+    }
+
+    private void readSectors(int first, byte[] dst, int length) {
+        for (int offset = 0, sector = first; offset < length; offset += sectorSize, sector++) {
+            final ByteBuffer buf = sectors.get(sector);
+            buf.get(dst, offset, Math.min(sectorSize, length - offset));
+            sectors.release(buf);
+        }
+    }
+
+    @Override
+    public WriteBuffer set(long index) {
+        checkIndex(index);
+        return new WriteBuffer(this, index, ByteBuffer.allocate(blockSize));
+    }
+
+    @Override
+    public boolean save(long block, ByteBuffer buf) {
+        final int index = checkIndex(block);
+        final byte[] page = buf.array();
+        int length = Lz4.compress(page, blockSize, compressBuf, hashTable);
+        final byte[] data;
+        //省不下一个扇区就原样存放
+        if (length < 0 || sectorCount(length) >= SECTORS_PER_BLOCK) {
+            length = blockSize;
+            data = page;
+        } else {
+            data = compressBuf;
+        }
+        final int needed = sectorCount(length);
+
+        ensureCapacity(index + 1);
+        if (index >= blocks) {
+            blocks = index + 1;
+        }
+        int first;
+        final int oldLength = slotLength[index];
+        if (oldLength > 0 && freshBlocks.get(index) && sectorCount(oldLength) >= needed) {
+            //新分配的槽放得下, 原地覆盖, 多余的扇区释放
+            first = slotSector[index];
+            usedSectors.clear(first + needed, first + sectorCount(oldLength));
+        } else {
+            freeSlot(index);
+            first = allocate(needed);
+        }
+        slotSector[index] = first;
+        slotLength[index] = length;
+        freshBlocks.set(index);
+
+        for (int offset = 0, sector = first; offset < length; offset += sectorSize, sector++) {
+            final WriteBuffer wbuf = sectors.set(sector);
+            if (wbuf == null) {
+                return false;
+            }
+            wbuf.buf().put(data, offset, Math.min(sectorSize, length - offset));
+            if (!wbuf.save()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void release(ByteBuffer buf) {
+    }
+
+    private static int checkIndex(long index) {
+        if (index < 0 || index >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("block " + index + " out of range of page table");
+        }
+        return (int) index;
+    }
+
+    private int allocate(int count) {
+        int from = 0;
+        while (true) {
+            final int start = usedSectors.nextClearBit(from);
+            final int end = usedSectors.nextSetBit(start);
+            if (end < 0 || end - start >= count) {
+                usedSectors.set(start, start + count);
+                return start;
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * 释放逻辑块当前的槽, 表文件引用的槽推迟到 sync() 之后
+     */
+    private void freeSlot(int index) {
+        final int length = slotLength[index];
+        if (length == 0) {
+            return;
+        }
+        final int first = slotSector[index];
+        final int count = sectorCount(length);
+        if (freshBlocks.get(index)) {
+            usedSectors.clear(first, first + count);
+        } else {
+            pendingFree.add(new int[]{first, count});
+        }
+        slotLength[index] = 0;
+    }
+
+    /**
+     * 数据扇区落盘后写入页转换表, 然后释放旧槽并截掉文件末尾的空闲扇区.
+     * 页转换表写入失败时抛出异常, 调用者不能认为之前的写入已经落盘(例如据此清空日志)
+     */
+    @Override
+    public void sync() {
+        if (!isOpen()) {
+            return;
+        }
+        sectors.sync();
+        try {
+            saveTable();
+        } catch (IOException e) {
+            throw new UncheckedIOException("save page table " + tableFile + " failed", e);
+        }
+        freshBlocks.clear();
+        for (int[] slot : pendingFree) {
+            usedSectors.clear(slot[0], slot[0] + slot[1]);
+        }
+        pendingFree.clear();
+        sectors.truncate(usedSectors.length());
+    }
+
+    @Override
+    public void truncate(long size) {
+        final int blocks = (int) Math.min(size, this.blocks);
+        for (int i = blocks; i < this.blocks; i++) {
+            freeSlot(i);
+        }
+        freshBlocks.clear(blocks, this.blocks);
+        this.blocks = blocks;
+    }
+    //-------------------------------------------------------------------//
+
+    @Override
+    public long sizeInBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 物理上占用的字节数
+     */
+    public long getPhysicalSize() {
+        return (long) usedSectors.cardinality() * sectorSize;
+    }
+}
@@ -0,0 +1,77 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC32C(Castagnoli), 纯 Java 的 slicing-by-8 实现, 结果与 java.util.zip.CRC32C 相同
+ */
+public final class Crc32c {
+
+    private static final int POLY = 0x82F63B78;
+
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLE[crc & 0xFF] ^ (crc >>> 8);
+                TABLE[k * 256 + n] = crc;
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * 计算 buf[from, to) 的校验和, 不修改 buf 的 position
+     */
+    public static int checksum(final ByteBuffer buf, final int from, final int to) {
+        return ~update(~0, buf, from, to);
+    }
+
+    /**
+     * 在未取反的中间值 crc 上继续计算 buf[from, to), 初始值为 ~0, 最终结果需要取反
+     */
+    public static int update(int crc, final ByteBuffer buf, final int from, final int to) {
+        int i = from;
+        if (buf.hasArray()) {
+            final byte[] a = buf.array();
+            final int base = buf.arrayOffset();
+            for (; i + 8 <= to; i += 8) {
+                final int p = base + i;
+                final int lo = crc ^ ((a[p] & 0xFF) | (a[p + 1] & 0xFF) << 8 | (a[p + 2] & 0xFF) << 16 | (a[p + 3] & 0xFF) << 24);
+                final int hi = (a[p + 4] & 0xFF) | (a[p + 5] & 0xFF) << 8 | (a[p + 6] & 0xFF) << 16 | (a[p + 7] & 0xFF) << 24;
+                crc = slice8(lo, hi);
+            }
+        } else {
+            final boolean little = buf.order() == ByteOrder.LITTLE_ENDIAN;
+            for (; i + 8 <= to; i += 8) {
+                final int x = buf.getInt(i), y = buf.getInt(i + 4);
+                final int lo = crc ^ (little ? x : Integer.reverseBytes(x));
+                final int hi = little ? y : Integer.reverseBytes(y);
+                crc = slice8(lo, hi);
+            }
+        }
+        for (; i < to; i++) {
+            crc = TABLE[(crc ^ buf.get(i)) & 0xFF] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+
+    private static int slice8(final int lo, final int hi) {
+        return TABLE[7 * 256 + (lo & 0xFF)] ^ TABLE[6 * 256 + ((lo >>> 8) & 0xFF)]
+                ^ TABLE[5 * 256 + ((lo >>> 16) & 0xFF)] ^ TABLE[4 * 256 + (lo >>> 24)]
+                ^ TABLE[3 * 256 + (hi & 0xFF)] ^ TABLE[2 * 256 + ((hi >>> 8) & 0xFF)]
+                ^ TABLE[256 + ((hi >>> 16) & 0xFF)] ^ TABLE[hi >>> 24];
+    }
+}
@@ -1,83 +1,116 @@
 package com.ldw.structures.store;
 
+import com.ldw.structures.metrics.Counter;
+import com.ldw.structures.metrics.Histogram;
+import com.ldw.structures.metrics.MetricsRegistry;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.*;
-
-public class FileBlockStore {
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 基于 mmap 的块存储.
+ * <p>
+ * 文件按固定大小的段(segment)整体映射, 一个段包含 2 的幂个块. 块通过段内偏移直接定位,
+ * 返回的是段的切片(slice), 不再为每个块单独 map. 访问到还没映射的段时才映射它,
+ * 映射超出文件末尾时文件会随之增长. 块号和文件偏移都按 long 计算, 只有段号限制在 int 范围内.
+ * <p>
+ * save() 记录写过的段, sync() 只 force 这些段, 每个段是一段连续的文件区间. 文件长度没有变化时
+ * 只需要 force(false) 刷数据, 不必等文件元数据落盘.
+ */
+public class FileBlockStore implements BlockStore {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
 
     public final int blockSize;
 
+    private final int segmentSize;
+
+    //每个段包含的块数为 1 << segmentShift
+    private final int segmentShift;
+
+    private final int segmentMask;
+
     private File file = null;
 
     private RandomAccessFile raf = null;
 
     private FileChannel fileChannel = null;
 
-    private final HashMap<Integer, BufferReference> mmaps = new HashMap<>(128);
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    //上次 sync 之后写过的段
+    private final BitSet dirtySegments = new BitSet();
+
+    //上次 sync 时的文件长度, 长度变了才需要连同元数据一起 force
+    private long syncedLength = -1;
+
+    //映射过的段数
+    private final Counter segmentMaps;
+
+    //sync 时 force 的段数
+    private final Counter segmentFlushes;
 
+    private final Histogram syncNanos;
+
+    //prefetch 按操作系统页逐页读一个字节
+    private static final int OS_PAGE_SIZE = 4096;
+
+    //保存 prefetch 读到的字节, 避免读取被优化掉
+    private int prefetchSink;
+
+    @Override
     public void sync() {
-        syncAllMmaps();
+        final long start = System.nanoTime();
+        syncDirtyMmaps();
         if (fileChannel != null) {
             try {
-                fileChannel.force(true);
+                final long length = fileChannel.size();
+                fileChannel.force(length != syncedLength);
+                syncedLength = length;
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new UncheckedIOException("sync " + file + " failed", e);
             }
         }
+        syncNanos.recordSince(start);
     }
 
-    private Comparator<BufferReference<MappedByteBuffer>> comparatorByPointer = new Comparator<BufferReference<MappedByteBuffer>>() {
-        @Override
-        public int compare(BufferReference<MappedByteBuffer> o1, BufferReference<MappedByteBuffer> o2) {
-            if (o1 == null) {
-                if (o2 == null) {
-                    return 0;
-                }
-                return 1;
-            }
-            if (o2 == null) {
-                return -1;
-            }
-            final int thisVal = o1.pointer < 0 ? -o1.pointer : o1.pointer;
-            final int anotherVal = o2.pointer < 0 ? -o2.pointer : o2.pointer;
-            return thisVal < anotherVal ? -1 : (thisVal == anotherVal ? 0 : 1);
+    /**
+     * 按段号顺序 force 写过的段. 先取出并清空脏段, 期间新写入的段留到下一次 sync.
+     * force 失败时这个段和之后还没有 force 的段重新标记为脏
+     */
+    private void syncDirtyMmaps() {
+        final BitSet dirty;
+        synchronized (dirtySegments) {
+            dirty = (BitSet) dirtySegments.clone();
+            dirtySegments.clear();
         }
-    };
-
-    private void syncAllMmaps() {
-
-        Collection<BufferReference> values = mmaps.values();
-        BufferReference<MappedByteBuffer>[] maps = new BufferReference[values.size()];
-        values.toArray(maps);
-        Arrays.sort(maps, comparatorByPointer);
-        for (Reference<MappedByteBuffer> ref : maps) {
-            if (ref == null) {
-                break;
-            }
-            final MappedByteBuffer mbb = ref.get();
-            if (mbb != null) {
+        final MappedByteBuffer[] current = segments;
+        for (int i = dirty.nextSetBit(0); i >= 0 && i < current.length; i = dirty.nextSetBit(i + 1)) {
+            if (current[i] != null) {
                 try {
-                    mbb.force();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    current[i].force();
+                    segmentFlushes.inc();
+                } catch (UncheckedIOException e) {
+                    synchronized (dirtySegments) {
+                        dirty.clear(0, i);
+                        dirtySegments.or(dirty);
+                    }
+                    throw e;
                 }
             }
         }
     }
 
-    static class BufferReference<T extends MappedByteBuffer> extends SoftReference<T> {
-        final int pointer;
-
-        public BufferReference(final int pointer, final T referent) {
-            super(referent);
-            this.pointer = pointer;
+    private void markDirty(int segmentIndex) {
+        synchronized (dirtySegments) {
+            dirtySegments.set(segmentIndex);
         }
     }
 
@@ -86,11 +119,29 @@ public class FileBlockStore {
     }
 
     public FileBlockStore(final File file, final int blockSize) {
+        this(file, blockSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public FileBlockStore(final File file, final int blockSize, final int segmentSize) {
+        this(file, blockSize, segmentSize, new MetricsRegistry());
+    }
+
+    public FileBlockStore(final File file, final int blockSize, final int segmentSize, final MetricsRegistry metrics) {
+        if (Integer.bitCount(blockSize) != 1 || Integer.bitCount(segmentSize) != 1 || segmentSize < blockSize) {
+            throw new IllegalArgumentException("invalid blockSize " + blockSize + " / segmentSize " + segmentSize);
+        }
         this.file = file;
         this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize / blockSize);
+        this.segmentMask = (1 << segmentShift) - 1;
+        this.segmentMaps = metrics.counter("store.mmap.segments");
+        this.segmentFlushes = metrics.counter("store.flush.segments");
+        this.syncNanos = metrics.histogram("store.sync.nanos");
     }
 
     //----------------------------  打开文件 -----------------------------//
+    @Override
     public boolean open() {
         if (isOpen()) {
             close();
@@ -98,6 +149,7 @@ public class FileBlockStore {
         try {
             raf = new RandomAccessFile(file, "rw");
             fileChannel = raf.getChannel();
+            syncedLength = -1;
         } catch (Exception e) {
             System.out.println("Exception in open()" + e);
             try {
@@ -115,8 +167,15 @@ public class FileBlockStore {
     //-------------------------------------------------------------------//
 
     //----------------------------  关闭文件 -----------------------------//
+    @Override
     public void close() {
-        mmaps.clear();
+        if (!isOpen()) {
+            return;
+        }
+        segments = new MappedByteBuffer[0];
+        synchronized (dirtySegments) {
+            dirtySegments.clear();
+        }
         try {
             fileChannel.close();
             raf.close();
@@ -130,6 +189,7 @@ public class FileBlockStore {
     //-------------------------------------------------------------------//
 
     //----------------------------  删除文件 -----------------------------//
+    @Override
     public void delete() {
         close();
         try {
@@ -139,6 +199,7 @@ public class FileBlockStore {
         }
     }
 
+    @Override
     public void release(ByteBuffer buf) {
 
     }
@@ -146,78 +207,140 @@ public class FileBlockStore {
 
     //----------------------------  写入文件块 -----------------------------//
 
-    private boolean set(int index, ByteBuffer buf) {
-        try {
-            if (buf.limit() > blockSize) {
-                System.out.println("ERROR: buffer.capacity=" + buf.limit() + " > blocksize=" + blockSize);
-            }
-            if (buf instanceof MappedByteBuffer) {
-                ((MappedByteBuffer) buf).force();
-                return true;
-            }
-            MappedByteBuffer mbb = getMmapForIndex(index);
-            if (mbb != null) {
-                mbb.put(buf);
-                return true;
-            }
-        } catch (Exception e) {
-            System.out.println("Exception in set(" + index + ")" + e);
+    /**
+     * set(index) 返回的是映射中的块, 内容已经写在映射里, 这里只记录所在的段, 由 sync() 统一落盘
+     */
+    @Override
+    public boolean save(long index, ByteBuffer buf) {
+        if (buf == null) {
+            return false;
         }
-        return false;
+        markDirty(segmentOf(index));
+        return true;
     }
 
     //-------------------------------------------------------------------//
 
     //----------------------------  获取文件块 -----------------------------//
-    public WriteBuffer set(int index) {
-        final MappedByteBuffer buf = getMmapForIndex(index);
+
+    /**
+     * 获取可以直接写入的块, 内容写在映射里, 由 sync() 统一落盘
+     */
+    @Override
+    public WriteBuffer set(long index) {
+        final ByteBuffer buf = getBlock(index);
         if (buf != null) {
             return new WriteBuffer(this, index, buf);
         }
         return null;
     }
 
-    private MappedByteBuffer getMmapForIndex(int index) {
-        int mapPointer = index;
-        int mapSize = blockSize;
+    /**
+     * 读取块, 返回的 buffer 有独立的 position, 可以被多个线程同时读取
+     */
+    @Override
+    public ByteBuffer get(long index) {
+        return getBlock(index);
+    }
 
-        try {
-            BufferReference<MappedByteBuffer> bref = mmaps.get(index);
-            MappedByteBuffer mbb = null;
-            if (bref != null) {
-                mbb = bref.get();
-            }
-            if (mbb == null) {
-                long mapOffset = (long) mapPointer * mapSize;
-                mbb = fileChannel.map(FileChannel.MapMode.READ_WRITE, mapOffset, mapSize);
-                mmaps.put(mapPointer, new BufferReference<MappedByteBuffer>(mapPointer, mbb));
+    /**
+     * 在调用线程上触发块所在页的缺页, 之后的读取直接命中 page cache. 文件末尾之后的块不处理, 以免映射扩展文件
+     */
+    @Override
+    public void prefetch(long index) {
+        if (index < 0 || index >= sizeInBlocks()) {
+            return;
+        }
+        final ByteBuffer block = getBlock(index);
+        if (block == null) {
+            return;
+        }
+        int sum = 0;
+        for (int offset = 0; offset < blockSize; offset += OS_PAGE_SIZE) {
+            sum += block.get(offset);
+        }
+        prefetchSink += sum;
+    }
+
+    private ByteBuffer getBlock(long index) {
+        MappedByteBuffer segment = getSegment(segmentOf(index));
+        if (segment == null) {
+            return null;
+        }
+        //段内偏移不超过 segmentSize, 在 int 范围内
+        int offset = (int) (index & segmentMask) * blockSize;
+        ByteBuffer block = segment.duplicate();
+        block.limit(offset + blockSize);
+        block.position(offset);
+        return block.slice();
+    }
+
+    private int segmentOf(long index) {
+        final long segmentIndex = index >>> segmentShift;
+        if (index < 0 || segmentIndex >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("block " + index + " out of range");
+        }
+        return (int) segmentIndex;
+    }
+
+    private MappedByteBuffer getSegment(int segmentIndex) {
+        MappedByteBuffer[] current = segments;
+        if (segmentIndex < current.length && current[segmentIndex] != null) {
+            return current[segmentIndex];
+        }
+        synchronized (this) {
+            current = segments;
+            if (segmentIndex >= current.length) {
+                current = Arrays.copyOf(current, Math.max(segmentIndex + 1, current.length * 2));
+            } else if (current[segmentIndex] != null) {
+                return current[segmentIndex];
             } else {
-                mbb.clear();
+                current = current.clone();
             }
-            return mbb;
-        } catch (IOException e) {
-            System.out.println("IOException in getMmapForIndex(" + index + ")" + e);
+            try {
+                long mapOffset = (long) segmentIndex * segmentSize;
+                current[segmentIndex] = fileChannel.map(FileChannel.MapMode.READ_WRITE, mapOffset, segmentSize);
+                segmentMaps.inc();
+            } catch (IOException e) {
+                System.out.println("IOException in getSegment(" + segmentIndex + ")" + e);
+                return null;
+            }
+            segments = current;
+            return current[segmentIndex];
         }
-        return null;
     }
 
+    //-------------------------------------------------------------------//
 
-    public ByteBuffer get(int index) {
-        MappedByteBuffer mmapForIndex = getMmapForIndex(index);
-        if (mmapForIndex != null) {
-            return mmapForIndex;
+    //----------------------------  截断文件 -----------------------------//
+
+    /**
+     * 映射会把文件扩展到段的末尾, 所以只能按整段截断, 被截掉的段不再映射
+     */
+    @Override
+    public synchronized void truncate(long blocks) {
+        if (!isOpen()) {
+            return;
+        }
+        final int keepSegments = (int) ((blocks + segmentMask) >>> segmentShift);
+        MappedByteBuffer[] current = segments;
+        if (keepSegments < current.length) {
+            current = Arrays.copyOf(current, keepSegments);
+        }
+        segments = current;
+        synchronized (dirtySegments) {
+            dirtySegments.clear(keepSegments, Math.max(keepSegments, dirtySegments.length()));
         }
         try {
-            return fileChannel.map(FileChannel.MapMode.READ_WRITE, index * blockSize, blockSize);
+            fileChannel.truncate((long) keepSegments * segmentSize);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("IOException in truncate(" + blocks + ")" + e);
         }
-        return null;
     }
-
     //-------------------------------------------------------------------//
 
     //----------------------------  判断方法 -----------------------------//
+    @Override
     public boolean isOpen() {
         try {
             if (fileChannel != null) {
@@ -229,41 +352,24 @@ public class FileBlockStore {
         return false;
     }
 
-    public int sizeInBlocks() {
+    @Override
+    public long sizeInBlocks() {
         try {
             final long len = file.length();
-            final long num_blocks = ((len / blockSize) + (((len % blockSize) == 0) ? 0 : 1));
-            return (int) num_blocks;
+            return ((len / blockSize) + (((len % blockSize) == 0) ? 0 : 1));
         } catch (Exception e) {
             System.out.println("Exception in sizeInBlocks()" + e);
         }
         return -1;
     }
-    //-------------------------------------------------------------------//
-
-    public static class WriteBuffer {
-        private final FileBlockStore storage;
-        private final int index;
-        private MappedByteBuffer buf;
-
 
-        public MappedByteBuffer buf() {
-            return buf;
-        }
-
-        private WriteBuffer(final FileBlockStore storage, final int index, final MappedByteBuffer buf) {
-            this.storage = storage;
-            this.index = index;
-            this.buf = buf;
-        }
-
-        public boolean save() {
-            boolean ret = storage.set(index, buf);
-            storage.release(buf);
-            buf = null;
-            return ret;
-        }
+    @Override
+    public int getBlockSize() {
+        return blockSize;
     }
 
-
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+    //-------------------------------------------------------------------//
 }
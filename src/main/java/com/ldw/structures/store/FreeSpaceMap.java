@@ -0,0 +1,223 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 数据文件的空闲块位图.
+ * <p>
+ * 文件按 blockSize * 8 个块分组, 每组的第一个块是该组的位图页, 位为 1 表示块空闲.
+ * 第 0 组的第一个块是元数据, 它的位图页放在块 1. 位图页和元数据块永远不会被标记为空闲.
+ * 位图页在组内其它块之前, 截断文件时组内的块总是先于位图页被截掉.
+ * 内存中保存全部位图, 另有一层摘要位图记录哪些 long 中有空闲位, 申请时从提示位置开始查找,
+ * 找不到再从头查找. 修改过的组记为脏, 由调用者把对应的位图页写回文件.
+ * 块号是 long, 内存中的位图按 long[] 下标保存, 最多可以管理 2^37 个块.
+ */
+public class FreeSpaceMap {
+
+    private final int blockSize;
+
+    //每组的块数, 即一个位图页的位数
+    private final int groupSize;
+
+    private final int wordsPerPage;
+
+    private long[] words = new long[0];
+
+    //第 i 位表示 words[i] 中是否有空闲位
+    private long[] summary = new long[0];
+
+    private int freeCount = 0;
+
+    private final BitSet dirtyGroups = new BitSet();
+
+    public FreeSpaceMap(int blockSize) {
+        this.blockSize = blockSize;
+        this.groupSize = blockSize * 8;
+        this.wordsPerPage = blockSize / 8;
+    }
+
+    //----------------------------  位图页 -----------------------------//
+    public int groupOf(long index) {
+        return (int) (index / groupSize);
+    }
+
+    public long mapBlock(int group) {
+        return group == 0 ? 1 : (long) group * groupSize;
+    }
+
+    public boolean isMapBlock(long index) {
+        return index == 1 || (index > 0 && index % groupSize == 0);
+    }
+
+    /**
+     * 从位图页中读取一组的位图
+     */
+    public void load(int group, ByteBuffer page) {
+        ensureCapacity((long) (group + 1) * groupSize);
+        final int base = group * wordsPerPage;
+        for (int i = 0; i < wordsPerPage; i++) {
+            long word = page.getLong(i * 8);
+            freeCount += Long.bitCount(word) - Long.bitCount(words[base + i]);
+            words[base + i] = word;
+            updateSummary(base + i);
+        }
+    }
+
+    /**
+     * 把一组的位图写入位图页
+     */
+    public void save(int group, ByteBuffer page) {
+        ensureCapacity((long) (group + 1) * groupSize);
+        final int base = group * wordsPerPage;
+        page.clear();
+        for (int i = 0; i < wordsPerPage; i++) {
+            page.putLong(words[base + i]);
+        }
+        page.flip();
+    }
+
+    public void markDirty(int group) {
+        dirtyGroups.set(group);
+    }
+
+    public boolean hasDirty() {
+        return !dirtyGroups.isEmpty();
+    }
+
+    /**
+     * 取出并清空修改过的组
+     */
+    public int[] drainDirty() {
+        int[] groups = dirtyGroups.stream().toArray();
+        dirtyGroups.clear();
+        return groups;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  申请/释放 -----------------------------//
+
+    /**
+     * 申请一个空闲块, 优先选择 near 之后最近的空闲块
+     *
+     * @return 块号, 没有空闲块时返回 -1
+     */
+    public long allocate(long near) {
+        if (freeCount == 0) {
+            return -1;
+        }
+        long index = nextFree(Math.max(near, 0));
+        if (index < 0) {
+            index = nextFree(0);
+        }
+        if (index < 0) {
+            return -1;
+        }
+        setFree(index, false);
+        return index;
+    }
+
+    public void free(long index) {
+        ensureCapacity(index + 1);
+        setFree(index, true);
+    }
+
+    /**
+     * 把空闲块标记为已使用, 用于截断文件末尾的空闲块
+     *
+     * @return 块原来是否空闲
+     */
+    public boolean reserve(long index) {
+        if (!isFree(index)) {
+            return false;
+        }
+        setFree(index, false);
+        return true;
+    }
+
+    public boolean isFree(long index) {
+        final long w = index >>> 6;
+        return w < words.length && (words[(int) w] & (1L << index)) != 0;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public void clear() {
+        words = new long[0];
+        summary = new long[0];
+        freeCount = 0;
+        dirtyGroups.clear();
+    }
+
+    private long nextFree(long from) {
+        if ((from >>> 6) >= words.length) {
+            return -1;
+        }
+        int w = (int) (from >>> 6);
+        long word = words[w] & (-1L << from);
+        if (word != 0) {
+            return ((long) w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        //当前 long 中没有, 通过摘要找下一个有空闲位的 long
+        w++;
+        int s = w >>> 6;
+        if (s >= summary.length) {
+            return -1;
+        }
+        long bits = summary[s] & (-1L << w);
+        while (bits == 0) {
+            if (++s >= summary.length) {
+                return -1;
+            }
+            bits = summary[s];
+        }
+        w = (s << 6) + Long.numberOfTrailingZeros(bits);
+        return ((long) w << 6) + Long.numberOfTrailingZeros(words[w]);
+    }
+
+    private void setFree(long index, boolean free) {
+        final int w = (int) (index >>> 6);
+        final long mask = 1L << index;
+        if (((words[w] & mask) != 0) == free) {
+            return;
+        }
+        if (free) {
+            words[w] |= mask;
+            freeCount++;
+        } else {
+            words[w] &= ~mask;
+            freeCount--;
+        }
+        updateSummary(w);
+        dirtyGroups.set(groupOf(index));
+    }
+
+    private void updateSummary(int w) {
+        if (words[w] != 0) {
+            summary[w >>> 6] |= 1L << w;
+        } else {
+            summary[w >>> 6] &= ~(1L << w);
+        }
+    }
+
+    //按整组扩展
+    private void ensureCapacity(long blocks) {
+        long groups = (blocks + groupSize - 1) / groupSize;
+        long needed = groups * wordsPerPage;
+        if (needed > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many blocks for free space map: " + blocks);
+        }
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, (int) Math.min(Math.max(needed, words.length * 2L), Integer.MAX_VALUE - 8));
+            summary = Arrays.copyOf(summary, (words.length + 63) >>> 6);
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+}
@@ -0,0 +1,170 @@
+package com.ldw.structures.store;
+
+import java.util.Arrays;
+
+/**
+ * LZ4 块格式的压缩与解压, 纯 Java 实现, 与标准 LZ4 block 格式兼容.
+ * <p>
+ * 每个序列: token(高 4 位字面量长度, 低 4 位匹配长度 - 4), 字面量长度扩展字节, 字面量,
+ * 2 字节小端偏移, 匹配长度扩展字节. 最后一个序列只有字面量. 压缩使用单个哈希表的贪心匹配.
+ */
+public final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+
+    //最后 5 个字节必须是字面量
+    private static final int LAST_LITERALS = 5;
+
+    //最后一个匹配至少要在结尾前 12 个字节开始
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    public static final int HASH_LOG = 12;
+
+    private Lz4() {
+    }
+
+    /**
+     * 压缩 src[0, srcLen) 到 dst 的开头
+     *
+     * @param table 长度为 1 << HASH_LOG 的哈希表, 由调用者复用
+     * @return 压缩后的字节数, dst 放不下时返回 -1
+     */
+    public static int compress(final byte[] src, final int srcLen, final byte[] dst, final int[] table) {
+        Arrays.fill(table, -1);
+        final int matchLimit = srcLen - LAST_LITERALS;
+        final int mfLimit = srcLen - MF_LIMIT;
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+
+        while (ip < mfLimit) {
+            final int sequence = readInt(src, ip);
+            final int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            //向前扩展匹配
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int length = MIN_MATCH;
+            while (ip + length < matchLimit && src[ref + length] == src[ip + length]) {
+                length++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, op);
+            if (op < 0) {
+                return -1;
+            }
+            ip += length;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, srcLen - anchor, 0, 0, dst, op);
+    }
+
+    /**
+     * 写入一个序列, matchLength 为 0 时只写字面量
+     *
+     * @return 新的写入位置, 放不下时返回 -1
+     */
+    private static int writeSequence(final byte[] src, final int literalStart, final int literals,
+                                     final int offset, final int matchLength, final byte[] dst, int op) {
+        if (op + 1 + literals + literals / 255 + 1 + 2 + matchLength / 255 + 1 > dst.length) {
+            return -1;
+        }
+        final int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, 15);
+            op = writeLength(matchLength - MIN_MATCH, dst, op);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int length, final byte[] dst, int op) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    /**
+     * 把 src[srcOff, srcOff + srcLen) 解压到 dst 的开头, 解压后必须正好是 dstLen 个字节
+     *
+     * @throws IllegalStateException 数据损坏
+     */
+    public static void decompress(final byte[] src, final int srcOff, final int srcLen, final byte[] dst, final int dstLen) {
+        final int end = srcOff + srcLen;
+        int ip = srcOff;
+        int op = 0;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+
+                final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (offset == 0 || offset > op) {
+                    throw new IllegalStateException("invalid lz4 offset " + offset + " at " + op);
+                }
+                int length = token & 0x0F;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        length += b;
+                    } while (b == 255);
+                }
+                length += MIN_MATCH;
+                int ref = op - offset;
+                if (offset >= length) {
+                    System.arraycopy(dst, ref, dst, op, length);
+                    op += length;
+                } else {
+                    //重叠的匹配逐字节复制
+                    for (int i = 0; i < length; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalStateException("corrupted lz4 block", e);
+        }
+        if (op != dstLen || ip != end) {
+            throw new IllegalStateException("corrupted lz4 block: " + op + " != " + dstLen);
+        }
+    }
+
+    private static int readInt(final byte[] buf, final int i) {
+        return (buf[i] & 0xFF) | ((buf[i + 1] & 0xFF) << 8) | ((buf[i + 2] & 0xFF) << 16) | ((buf[i + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,179 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 堆外内存中的块存储, 不持久化.
+ * <p>
+ * 与 {@link FileBlockStore} 一样按段组织, 每段是一块 direct buffer, 第一次写入段中的块时才分配.
+ * 页不在 Java 堆上, 不会增加 GC 的扫描负担. 读取可以并发进行, 写入由调用者串行化.
+ */
+public class MemoryBlockStore implements BlockStore {
+
+    private final int blockSize;
+
+    private final int segmentSize;
+
+    //每个段包含的块数为 1 << segmentShift
+    private final int segmentShift;
+
+    private final int segmentMask;
+
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+
+    private volatile boolean open = false;
+
+    //写入过的最大块号 + 1
+    private long blocks = 0;
+
+    public MemoryBlockStore(final int blockSize, final int segmentSize) {
+        if (Integer.bitCount(blockSize) != 1 || Integer.bitCount(segmentSize) != 1 || segmentSize < blockSize) {
+            throw new IllegalArgumentException("invalid blockSize " + blockSize + " / segmentSize " + segmentSize);
+        }
+        this.blockSize = blockSize;
+        this.segmentSize = segmentSize;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize / blockSize);
+        this.segmentMask = (1 << segmentShift) - 1;
+    }
+
+    //----------------------------  打开关闭 -----------------------------//
+    @Override
+    public boolean open() {
+        open = true;
+        return true;
+    }
+
+    /**
+     * 内存中的内容在关闭后丢弃
+     */
+    @Override
+    public void close() {
+        delete();
+    }
+
+    @Override
+    public synchronized void delete() {
+        segments = new ByteBuffer[0];
+        blocks = 0;
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读写块 -----------------------------//
+
+    /**
+     * 没有写过的块返回 null
+     */
+    @Override
+    public ByteBuffer get(long index) {
+        final ByteBuffer[] current = segments;
+        final int segmentIndex = segmentOf(index);
+        if (segmentIndex >= current.length || current[segmentIndex] == null) {
+            return null;
+        }
+        return slice(current[segmentIndex], index);
+    }
+
+    private ByteBuffer slice(ByteBuffer segment, long index) {
+        final int offset = (int) (index & segmentMask) * blockSize;
+        final ByteBuffer block = segment.duplicate();
+        block.limit(offset + blockSize);
+        block.position(offset);
+        return block.slice();
+    }
+
+    @Override
+    public WriteBuffer set(long index) {
+        final ByteBuffer segment = getSegment(segmentOf(index));
+        if (segment == null) {
+            return null;
+        }
+        return new WriteBuffer(this, index, slice(segment, index));
+    }
+
+    private int segmentOf(long index) {
+        final long segmentIndex = index >>> segmentShift;
+        if (index < 0 || segmentIndex >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("block " + index + " out of range");
+        }
+        return (int) segmentIndex;
+    }
+
+    private synchronized ByteBuffer getSegment(int segmentIndex) {
+        ByteBuffer[] current = segments;
+        if (segmentIndex < current.length && current[segmentIndex] != null) {
+            return current[segmentIndex];
+        }
+        current = segmentIndex >= current.length
+                ? Arrays.copyOf(current, Math.max(segmentIndex + 1, current.length * 2)) : current.clone();
+        try {
+            current[segmentIndex] = ByteBuffer.allocateDirect(segmentSize);
+        } catch (OutOfMemoryError e) {
+            System.out.println("OutOfMemoryError in getSegment(" + segmentIndex + ")" + e);
+            return null;
+        }
+        segments = current;
+        return current[segmentIndex];
+    }
+
+    /**
+     * 内容已经直接写入段中
+     */
+    @Override
+    public boolean save(long index, ByteBuffer buf) {
+        if (index >= blocks) {
+            blocks = index + 1;
+        }
+        return true;
+    }
+
+    @Override
+    public void release(ByteBuffer buf) {
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    /**
+     * 只释放完全位于 blocks 之后的段
+     */
+    @Override
+    public synchronized void truncate(long blocks) {
+        final int keepSegments = (int) ((blocks + segmentMask) >>> segmentShift);
+        if (keepSegments < segments.length) {
+            segments = Arrays.copyOf(segments, keepSegments);
+        }
+        this.blocks = Math.min(this.blocks, blocks);
+    }
+    //-------------------------------------------------------------------//
+
+    @Override
+    public long sizeInBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 已分配的堆外内存字节数
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : segments) {
+            if (segment != null) {
+                bytes += segmentSize;
+            }
+        }
+        return bytes;
+    }
+}
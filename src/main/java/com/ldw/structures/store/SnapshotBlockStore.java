@@ -0,0 +1,371 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 支持快照的块存储, 包装数据文件的存储.
+ * <p>
+ * 快照({@link View})钉住 pin() 时每个块的内容. 有快照时, 块被覆盖之前先把旧内容复制到副本存储中,
+ * 之后快照读这个块时读副本. 一份副本被所有当时还没有这个块副本的快照共用, 引用它的快照都关闭之后回收.
+ * <p>
+ * 写操作由调用者串行化, 有快照时从 set() 到 save() 持有写锁, sync/truncate 也持有写锁. 快照的读取不需要调用者加锁:
+ * 先乐观地读, 期间没有写入才算读成功, 否则持有读锁重读一次. 乐观读期间的异常(包括读已截断的映射区域时的
+ * InternalError)在校验失败时被忽略.
+ */
+public class SnapshotBlockStore implements BlockStore {
+
+    private final BlockStore store;
+
+    //被覆盖的块的旧内容, 只在有快照时打开
+    private final BlockStore copies;
+
+    private final StampedLock latch = new StampedLock();
+
+    private final CopyOnWriteArrayList<View> views = new CopyOnWriteArrayList<View>();
+
+    //副本块被多少个快照引用
+    private int[] copyRefs = new int[0];
+
+    private final BitSet usedCopies = new BitSet();
+
+    //set() 与 save() 之间持有的写锁
+    private long writeStamp = 0;
+
+    public SnapshotBlockStore(final BlockStore store, final BlockStore copies) {
+        if (store.getBlockSize() != copies.getBlockSize()) {
+            throw new IllegalArgumentException("block size " + store.getBlockSize() + " != " + copies.getBlockSize());
+        }
+        this.store = store;
+        this.copies = copies;
+    }
+
+    //----------------------------  打开关闭 -----------------------------//
+    @Override
+    public boolean open() {
+        return store.open();
+    }
+
+    /**
+     * 关闭所有快照并删除副本
+     */
+    @Override
+    public void close() {
+        closeViews();
+        store.close();
+    }
+
+    @Override
+    public void delete() {
+        closeViews();
+        store.delete();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return store.isOpen();
+    }
+
+    private void closeViews() {
+        final long stamp = latch.writeLock();
+        try {
+            for (View view : views) {
+                view.closed = true;
+            }
+            views.clear();
+            resetCopies();
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    private void resetCopies() {
+        Arrays.fill(copyRefs, 0);
+        usedCopies.clear();
+        copies.delete();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  快照 -----------------------------//
+
+    /**
+     * 钉住前 blocks 个块的当前内容. 调用者保证此时没有进行中的写操作
+     */
+    public View pin(long blocks) {
+        final long stamp = latch.writeLock();
+        try {
+            if (views.isEmpty() && !copies.isOpen() && !copies.open()) {
+                throw new RuntimeException("open snapshot copies failed");
+            }
+            final View view = new View(blocks);
+            views.add(view);
+            return view;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    public int getViewCount() {
+        return views.size();
+    }
+
+    /**
+     * 第 index 块将被覆盖, 为还没有它的副本的快照保存旧内容. 持有写锁时调用
+     */
+    private void preserve(long index) {
+        int copy = -1;
+        for (View view : views) {
+            if (index >= view.blocks || view.copied.containsKey(index)) {
+                continue;
+            }
+            if (copy < 0) {
+                copy = copyBlock(index);
+            }
+            view.copied.put(index, copy);
+            copyRefs[copy]++;
+        }
+    }
+
+    private int copyBlock(long index) {
+        final int copy = usedCopies.nextClearBit(0);
+        usedCopies.set(copy);
+        if (copy >= copyRefs.length) {
+            copyRefs = Arrays.copyOf(copyRefs, Math.max(copy + 1, copyRefs.length * 2));
+        }
+        final ByteBuffer src = store.get(index);
+        final WriteBuffer wbuf = copies.set(copy);
+        if (src == null || wbuf == null) {
+            throw new RuntimeException("copy block " + index + " for snapshot failed");
+        }
+        try {
+            wbuf.buf().put(src);
+        } finally {
+            store.release(src);
+        }
+        wbuf.save();
+        return copy;
+    }
+
+    /**
+     * 某个时刻的只读视图. 可以被多个线程同时读取
+     */
+    public final class View {
+
+        private final long blocks;
+
+        //块 -> 保存旧内容的副本块
+        private final ConcurrentHashMap<Long, Integer> copied = new ConcurrentHashMap<Long, Integer>();
+
+        private volatile boolean closed = false;
+
+        private View(long blocks) {
+            this.blocks = blocks;
+        }
+
+        /**
+         * 读取第 index 块在 pin() 时的内容, 返回独立的副本
+         */
+        public ByteBuffer read(long index) {
+            if (index < 0 || index >= blocks) {
+                throw new IllegalArgumentException("block " + index + " not in snapshot of " + blocks + " blocks");
+            }
+            final byte[] page = new byte[getBlockSize()];
+            long stamp = latch.tryOptimisticRead();
+            if (stamp != 0) {
+                RuntimeException failure = null;
+                InternalError fault = null;
+                try {
+                    copyTo(index, page);
+                } catch (RuntimeException e) {
+                    //可能是读到了写了一半的存储状态, 校验失败后重读
+                    failure = e;
+                } catch (InternalError e) {
+                    //截断(compaction, 压缩存储的 sync)缩小了文件, 读仍然映射着的已截掉的部分会得到 SIGBUS
+                    fault = e;
+                }
+                if (latch.validate(stamp)) {
+                    checkOpen();
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (fault != null) {
+                        throw fault;
+                    }
+                    return ByteBuffer.wrap(page);
+                }
+            }
+            stamp = latch.readLock();
+            try {
+                checkOpen();
+                copyTo(index, page);
+            } finally {
+                latch.unlockRead(stamp);
+            }
+            return ByteBuffer.wrap(page);
+        }
+
+        private void copyTo(long index, byte[] page) {
+            final Integer copy = copied.get(index);
+            final BlockStore from = copy != null ? copies : store;
+            final ByteBuffer src = from.get(copy != null ? copy : index);
+            if (src == null) {
+                throw new RuntimeException("read block " + index + " failed");
+            }
+            try {
+                src.get(page);
+            } finally {
+                from.release(src);
+            }
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("snapshot closed");
+            }
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 释放这个快照引用的副本, 没有快照时副本存储被删除
+         */
+        public void close() {
+            final long stamp = latch.writeLock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                views.remove(this);
+                if (views.isEmpty()) {
+                    resetCopies();
+                    return;
+                }
+                for (int copy : copied.values()) {
+                    if (--copyRefs[copy] == 0) {
+                        usedCopies.clear(copy);
+                    }
+                }
+            } finally {
+                latch.unlockWrite(stamp);
+            }
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  读写块 -----------------------------//
+
+    /**
+     * 调用者持有树的锁, 与写操作互斥, 直接读
+     */
+    @Override
+    public ByteBuffer get(long index) {
+        return store.get(index);
+    }
+
+    @Override
+    public void prefetch(long index) {
+        store.prefetch(index);
+    }
+
+    @Override
+    public WriteBuffer set(long index) {
+        if (views.isEmpty()) {
+            return store.set(index);
+        }
+        writeStamp = latch.writeLock();
+        boolean locked = true;
+        try {
+            preserve(index);
+            final WriteBuffer wbuf = store.set(index);
+            if (wbuf == null) {
+                return null;
+            }
+            locked = false;
+            return new WriteBuffer(this, index, wbuf.buf());
+        } finally {
+            if (locked) {
+                unlockWrite();
+            }
+        }
+    }
+
+    /**
+     * 只有加了写锁的 set() 返回的 buffer 会保存到这里
+     */
+    @Override
+    public boolean save(long index, ByteBuffer buf) {
+        try {
+            return store.save(index, buf);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    private void unlockWrite() {
+        final long stamp = writeStamp;
+        writeStamp = 0;
+        latch.unlockWrite(stamp);
+    }
+
+    @Override
+    public void release(ByteBuffer buf) {
+        store.release(buf);
+    }
+
+    @Override
+    public void sync() {
+        if (views.isEmpty()) {
+            store.sync();
+            return;
+        }
+        final long stamp = latch.writeLock();
+        try {
+            store.sync();
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 被截掉的块对快照来说也是被覆盖了, 先保存副本
+     */
+    @Override
+    public void truncate(long blocks) {
+        if (views.isEmpty()) {
+            store.truncate(blocks);
+            return;
+        }
+        final long stamp = latch.writeLock();
+        try {
+            long end = 0;
+            for (View view : views) {
+                end = Math.max(end, view.blocks);
+            }
+            end = Math.min(end, store.sizeInBlocks());
+            for (long i = blocks; i < end; i++) {
+                preserve(i);
+            }
+            store.truncate(blocks);
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+    //-------------------------------------------------------------------//
+
+    @Override
+    public long sizeInBlocks() {
+        return store.sizeInBlocks();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return store.getBlockSize();
+    }
+}
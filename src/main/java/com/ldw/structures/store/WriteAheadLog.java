@@ -0,0 +1,290 @@
+package com.ldw.structures.store;
+
+import com.ldw.structures.metrics.Counter;
+import com.ldw.structures.metrics.Histogram;
+import com.ldw.structures.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 页镜像的预写日志(redo log).
+ * <p>
+ * append 的页先缓存在内存中, commit 时作为一个批次(frame)顺序追加到日志文件并 fsync 一次:
+ * <pre>
+ * | MAGIC | sequence | pageCount | (index: long, page[blockSize]) * pageCount | crc32 |
+ * </pre>
+ * 恢复时按顺序重放所有完整且校验正确的批次, 遇到不完整的尾部批次即停止.
+ */
+public class WriteAheadLog {
+
+    //帧格式变化时修改
+    private static final int MAGIC = 0x57414C32;
+
+    //每个页镜像前的块号
+    private static final int INDEX_SIZE = 8;
+
+    private static final int FRAME_HEADER_SIZE = 4 + 8 + 4;
+
+    private final File file;
+
+    private final int blockSize;
+
+    private RandomAccessFile raf = null;
+
+    private FileChannel fileChannel = null;
+
+    private ByteBuffer batch;
+
+    private int batchPages = 0;
+
+    private long sequence = 0;
+
+    //日志文件的长度, 只在 commit/truncate 时变化
+    private long size = 0;
+
+    //追加到日志文件的字节数
+    private final Counter bytesWritten;
+
+    //一次提交的写入 + fsync 耗时
+    private final Histogram commitNanos;
+
+    public WriteAheadLog(File file, int blockSize) {
+        this(file, blockSize, new MetricsRegistry());
+    }
+
+    public WriteAheadLog(File file, int blockSize, MetricsRegistry metrics) {
+        this.file = file;
+        this.blockSize = blockSize;
+        this.batch = ByteBuffer.allocate(FRAME_HEADER_SIZE + 16 * (INDEX_SIZE + blockSize) + 4);
+        this.bytesWritten = metrics.counter("wal.bytes");
+        this.commitNanos = metrics.histogram("wal.commit.nanos");
+    }
+
+    //----------------------------  打开文件 -----------------------------//
+    public boolean open() {
+        if (isOpen()) {
+            close();
+        }
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            fileChannel = raf.getChannel();
+            size = fileChannel.size();
+        } catch (IOException e) {
+            System.out.println("IOException in open()" + e);
+            raf = null;
+            fileChannel = null;
+        }
+        resetBatch();
+        return isOpen();
+    }
+
+    public void close() {
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileChannel = null;
+        raf = null;
+    }
+
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    public boolean isOpen() {
+        return fileChannel != null && fileChannel.isOpen();
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  写入日志 -----------------------------//
+
+    /**
+     * 把一个页镜像加入当前批次, page 从 0 到 limit 的内容会被复制
+     */
+    public void append(long index, ByteBuffer page) {
+        ensureBatchCapacity(INDEX_SIZE + blockSize);
+        batch.putLong(index);
+        int start = batch.position();
+        ByteBuffer src = page.duplicate();
+        src.position(0);
+        src.limit(Math.min(page.limit(), blockSize));
+        batch.put(src);
+        while (batch.position() < start + blockSize) {
+            batch.put((byte) 0);
+        }
+        batchPages++;
+    }
+
+    public int pendingPages() {
+        return batchPages;
+    }
+
+    /**
+     * 日志文件当前的字节数
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 把当前批次追加到日志文件末尾并 fsync 一次
+     */
+    public boolean commit() {
+        return commit(true);
+    }
+
+    /**
+     * 把当前批次追加到日志文件末尾. 日志只追加, 文件长度的变化由 fdatasync 保证,
+     * 所以 fsync 时只用 force(false).
+     * 失败时截掉已经写入的部分, 批次保留在内存中, 下次 commit 连同之后 append 的页一起重试
+     *
+     * @param force 为 false 时只写入 page cache, 操作系统崩溃时这个批次可能丢失
+     */
+    public boolean commit(boolean force) {
+        if (batchPages == 0) {
+            return true;
+        }
+        ensureBatchCapacity(4);
+        final int end = batch.position();
+        batch.putLong(4, ++sequence);
+        batch.putInt(12, batchPages);
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), 0, end);
+        batch.putInt((int) crc.getValue());
+        batch.flip();
+        final long start = System.nanoTime();
+        long position = size;
+        try {
+            while (batch.hasRemaining()) {
+                position += fileChannel.write(batch, position);
+            }
+            if (force) {
+                fileChannel.force(false);
+            }
+        } catch (IOException e) {
+            System.out.println("IOException in commit()" + e);
+            try {
+                fileChannel.truncate(size);
+            } catch (IOException ignore) {
+                //重试时从同一个位置写, 会覆盖残留的不完整批次
+            }
+            sequence--;
+            batch.clear();
+            batch.position(end);
+            return false;
+        }
+        bytesWritten.add(position - size);
+        size = position;
+        commitNanos.recordSince(start);
+        resetBatch();
+        return true;
+    }
+
+    /**
+     * 检查点完成之后清空日志
+     */
+    public void truncate() {
+        try {
+            fileChannel.truncate(0);
+            fileChannel.force(true);
+            size = 0;
+        } catch (IOException e) {
+            System.out.println("IOException in truncate()" + e);
+        }
+        resetBatch();
+    }
+
+    private void resetBatch() {
+        batch.clear();
+        batch.putInt(MAGIC).putLong(0).putInt(0);
+        batchPages = 0;
+    }
+
+    private void ensureBatchCapacity(int needed) {
+        if (batch.remaining() >= needed + 4) {
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + needed + 4));
+        batch.flip();
+        bigger.put(batch);
+        batch = bigger;
+    }
+    //-------------------------------------------------------------------//
+
+    //----------------------------  重放日志 -----------------------------//
+
+    /**
+     * 把日志中所有完整的批次重放到 storage
+     *
+     * @return 重放的批次数
+     */
+    public int replay(BlockStore storage) {
+        int frames = 0;
+        try {
+            final long size = fileChannel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            while (position + FRAME_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(header, position);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    break;
+                }
+                long seq = header.getLong();
+                int pages = header.getInt();
+                long frameSize = FRAME_HEADER_SIZE + (long) pages * (INDEX_SIZE + blockSize) + 4;
+                if (pages <= 0 || position + frameSize > size) {
+                    break;
+                }
+                ByteBuffer frame = ByteBuffer.allocate((int) frameSize);
+                readFully(frame, position);
+                CRC32 crc = new CRC32();
+                crc.update(frame.array(), 0, (int) frameSize - 4);
+                if (frame.getInt((int) frameSize - 4) != (int) crc.getValue()) {
+                    System.out.println("WriteAheadLog::replay() bad crc in frame " + seq);
+                    break;
+                }
+                frame.position(FRAME_HEADER_SIZE);
+                for (int i = 0; i < pages; i++) {
+                    long index = frame.getLong();
+                    WriteBuffer wbuf = storage.set(index);
+                    ByteBuffer page = frame.slice();
+                    page.limit(blockSize);
+                    wbuf.buf().put(page);
+                    wbuf.save();
+                    frame.position(frame.position() + blockSize);
+                }
+                sequence = seq;
+                position += frameSize;
+                frames++;
+            }
+        } catch (IOException e) {
+            System.out.println("IOException in replay()" + e);
+        }
+        return frames;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = fileChannel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of log");
+            }
+            position += n;
+        }
+    }
+    //-------------------------------------------------------------------//
+}
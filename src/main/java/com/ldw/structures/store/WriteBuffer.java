@@ -0,0 +1,30 @@
+package com.ldw.structures.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BlockStore#set(long)} 返回的可写块
+ */
+public class WriteBuffer {
+    private final BlockStore storage;
+    private final long index;
+    private ByteBuffer buf;
+
+
+    public ByteBuffer buf() {
+        return buf;
+    }
+
+    WriteBuffer(final BlockStore storage, final long index, final ByteBuffer buf) {
+        this.storage = storage;
+        this.index = index;
+        this.buf = buf;
+    }
+
+    public boolean save() {
+        boolean ret = storage.save(index, buf);
+        storage.release(buf);
+        buf = null;
+        return ret;
+    }
+}
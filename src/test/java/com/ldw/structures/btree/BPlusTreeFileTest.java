@@ -0,0 +1,1095 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.IntHolder;
+import com.ldw.structures.holders.LongHolder;
+import com.ldw.structures.holders.StringHolder;
+import com.ldw.structures.metrics.MetricsSnapshot;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * BPlusTreeFile 的读写及持久化测试
+ */
+public class BPlusTreeFileTest extends TestCase {
+
+    private static final int COUNT = 5000;
+
+    private File base;
+
+    private BPlusTreeConfig config;
+
+    @Override
+    protected void setUp() throws Exception {
+        base = File.createTempFile("bptree", "");
+        base.delete();
+        config = new BPlusTreeConfig()
+                .setBlockSize(512)
+                .setMaxKeySize(16)
+                .setMaxValueSize(16)
+                .setCacheSize(8)
+                .setSegmentSize(1024 * 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(base.getPath() + ".data").delete();
+        new File(base.getPath() + ".free").delete();
+        new File(base.getPath() + ".wal").delete();
+        new File(base.getPath() + ".ptt").delete();
+        new File(base.getPath() + ".snap").delete();
+    }
+
+    private BPlusTreeFile<StringHolder, StringHolder> openTree() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = new BPlusTreeFile<StringHolder, StringHolder>(
+                base.getPath(), config, StringHolder.class, StringHolder.class);
+        tree.open();
+        return tree;
+    }
+
+    private static StringHolder key(int i) {
+        return StringHolder.valueOf(String.format("k%06d", i));
+    }
+
+    private static StringHolder value(int i) {
+        return StringHolder.valueOf("v" + i);
+    }
+
+    private static void putShuffled(BPlusTreeFile<StringHolder, StringHolder> tree, int count) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        Collections.shuffle(list, new Random(42));
+        for (int i : list) {
+            tree.put(key(i), value(i));
+        }
+    }
+
+    public void testPutAndGet() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+
+        assertEquals(COUNT, tree.size());
+        assertTrue(tree.getHigh() > 2);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertNull(tree.getKey(key(COUNT)));
+        tree.close();
+    }
+
+    public void testReopen() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.close();
+
+        tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testMetrics() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        for (int i = 0; i < COUNT; i += 2) {
+            tree.remove(key(i));
+        }
+        tree.getKey(key(1));
+        tree.sync();
+
+        MetricsSnapshot metrics = tree.getMetrics().snapshot();
+        assertEquals(COUNT, metrics.getCounter("tree.put"));
+        assertEquals(COUNT / 2, metrics.getCounter("tree.remove"));
+        assertEquals(1, metrics.getCounter("tree.get"));
+        //缓存只有 8 个节点, 一定有从页加载的节点
+        assertTrue(metrics.getCounter("node.load") > 0);
+        assertTrue(metrics.getCounter("node.get") >= metrics.getCounter("node.load"));
+        assertTrue(metrics.getCounter("split.leaf") > 0);
+        assertTrue(metrics.getCounter("split.internal") > 0);
+        assertTrue(metrics.getCounter("node.write") > 0);
+        assertTrue(metrics.getCounter("store.mmap.segments") > 0);
+        assertEquals(tree.getHigh(), metrics.getGauge("tree.height"));
+        assertEquals(COUNT / 2, metrics.getGauge("tree.elements"));
+        assertTrue(metrics.getHistogram("store.sync.nanos").getCount() > 0);
+        tree.close();
+    }
+
+    /**
+     * 缓存大小不超过容量, 被淘汰的脏节点已经写回, 热点节点重复查找时不再反序列化
+     */
+    public void testNodeCache() throws Exception {
+        config.setCacheSize(64);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        for (int i = 0; i < COUNT; i++) {
+            tree.put(key(i), value(i));
+            assertTrue(tree.getMetrics().snapshot().getGauge("cache.size") <= config.getCacheSize());
+        }
+        //树比缓存大得多, 节点在写回之后才被淘汰, 重新加载时内容不丢
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertTrue(tree.getMetrics().snapshot().getGauge("cache.size") <= config.getCacheSize());
+
+        //查找一次之后根到叶子的路径都在缓存里, 再次查找同一个 key 不加载节点
+        tree.getKey(key(1));
+        long loads = tree.getMetrics().snapshot().getCounter("node.load");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(value(1), tree.getKey(key(1)));
+        }
+        assertEquals(loads, tree.getMetrics().snapshot().getCounter("node.load"));
+        tree.close();
+
+        tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    /**
+     * 多个读线程 getKey/scan 的同时一个线程写入和删除. 偶数 key 一直存在, 扫描结果必须严格有序并且包含范围内
+     * 所有偶数 key. 写线程原地修改读线程扫描中的叶子, 游标要从上次的 key 重新定位
+     */
+    public void testConcurrentReadersAndWriter() throws Exception {
+        config.setMaxKeySize(0).setMaxValueSize(0).setCacheSize(256);
+        final BPlusTreeFile<LongHolder, IntHolder> tree = new BPlusTreeFile<LongHolder, IntHolder>(
+                base.getPath(), config, LongHolder.class, IntHolder.class);
+        tree.open();
+        for (int i = 0; i < COUNT; i += 2) {
+            tree.put(LongHolder.valueOf(i), IntHolder.valueOf(i));
+        }
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        //写入所有奇数 key, 再删除其中除 4 余 1 的
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i < COUNT; i += 2) {
+                        tree.put(LongHolder.valueOf(i), IntHolder.valueOf(i));
+                        if (i >= 3 && (i - 2) % 4 == 1) {
+                            assertTrue(tree.remove(LongHolder.valueOf(i - 2)));
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        final List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final Random random = new Random(seed);
+                        for (int round = 0; round < 2000; round++) {
+                            final int i = random.nextInt(COUNT / 2) * 2;
+                            assertEquals(IntHolder.valueOf(i), tree.getKey(LongHolder.valueOf(i)));
+                            if (round % 10 == 0) {
+                                checkScan(tree.scan(LongHolder.valueOf(i), LongHolder.valueOf(i + 400)),
+                                        i, Math.min(i + 400, COUNT), false);
+                                checkScan(tree.scanDescending(LongHolder.valueOf(i), LongHolder.valueOf(i + 400)),
+                                        i, Math.min(i + 400, COUNT), true);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(COUNT / 2 + COUNT / 4, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            IntHolder expected = i % 4 == 1 ? null : IntHolder.valueOf(i);
+            assertEquals(expected, tree.getKey(LongHolder.valueOf(i)));
+        }
+        tree.close();
+    }
+
+    // [from, to) 范围内的 key 严格有序, value 与 key 对应, 偶数 key 都在
+    private static void checkScan(Iterator<Map.Entry<LongHolder, IntHolder>> it, int from, int to, boolean descending) {
+        long last = descending ? to : from - 1;
+        int evens = 0;
+        while (it.hasNext()) {
+            Map.Entry<LongHolder, IntHolder> entry = it.next();
+            final long key = entry.getKey().toLongKey();
+            assertTrue("out of order " + last + " -> " + key, descending ? key < last : key > last);
+            assertEquals(key, entry.getValue().toLongKey());
+            if (key % 2 == 0) {
+                evens++;
+            }
+            last = key;
+        }
+        assertEquals((to - from + 1) / 2, evens);
+    }
+
+    /**
+     * fan-out 由页大小计算, 页大小写在元数据中, 用不同的页大小打开已有文件时报错
+     */
+    public void testBlockSize() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        final int smallHigh = tree.getHigh();
+        final int smallOrder = tree.getLeafOrder();
+        tree.close();
+
+        config.setBlockSize(4096);
+        try {
+            openTree();
+            fail("opened a 512 byte page file with blockSize 4096");
+        } catch (RuntimeException expected) {
+        }
+        tearDown();
+
+        tree = openTree();
+        assertEquals(4096, tree.getBlockSize());
+        assertTrue(tree.getLeafOrder() > smallOrder * 4);
+        putShuffled(tree, COUNT);
+        assertTrue(tree.getHigh() < smallHigh);
+        tree.close();
+
+        tree = openTree();
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+
+        try {
+            config.setBlockSize(1000);
+            fail("blockSize must be a power of two");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testChannelStore() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(16);
+        testReopen();
+    }
+
+    public void testScan() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scan(key(100), key(200));
+        for (int i = 100; i < 200; i++) {
+            assertTrue(it.hasNext());
+            Map.Entry<StringHolder, StringHolder> entry = it.next();
+            assertEquals(key(i), entry.getKey());
+            assertEquals(value(i), entry.getValue());
+        }
+        assertFalse(it.hasNext());
+
+        it = tree.scanDescending(null, null);
+        for (int i = COUNT - 1; i >= 0; i--) {
+            assertEquals(key(i), it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+        tree.close();
+    }
+
+    public void testCursor() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        Cursor<StringHolder, StringHolder> cursor = tree.cursor();
+        assertFalse(cursor.first());
+        assertFalse(cursor.seek(key(0)));
+        assertFalse(cursor.next());
+
+        putShuffled(tree, COUNT);
+        //seek 到不存在的 key 时停在下一个更大的元素上
+        assertTrue(cursor.seek(StringHolder.valueOf(String.format("k%06dx", 100))));
+        assertEquals(key(101), cursor.key());
+        assertEquals(value(101), cursor.value());
+
+        //沿叶子链表来回移动, 跨过多个叶子
+        assertTrue(cursor.seek(key(500)));
+        for (int i = 499; i >= 300; i--) {
+            assertTrue(cursor.prev());
+            assertEquals(key(i), cursor.key());
+        }
+        for (int i = 301; i <= 700; i++) {
+            assertTrue(cursor.next());
+            assertEquals(key(i), cursor.key());
+        }
+
+        assertTrue(cursor.last());
+        assertEquals(key(COUNT - 1), cursor.key());
+        assertFalse(cursor.next());
+        assertFalse(cursor.isValid());
+        assertNull(cursor.key());
+
+        assertTrue(cursor.first());
+        assertEquals(key(0), cursor.key());
+        assertFalse(cursor.prev());
+        assertFalse(cursor.seek(key(COUNT)));
+
+        //修改之后重新 seek
+        for (int i = 0; i < COUNT; i += 2) {
+            tree.remove(key(i));
+        }
+        assertTrue(cursor.seek(key(100)));
+        assertEquals(key(101), cursor.key());
+        assertTrue(cursor.next());
+        assertEquals(key(103), cursor.key());
+        tree.close();
+    }
+
+    public void testScanDescending() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+
+        //降序同样是 [from, to), 从 to 之前的元素开始
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scanDescending(key(100), key(200));
+        for (int i = 199; i >= 100; i--) {
+            assertTrue(it.hasNext());
+            Map.Entry<StringHolder, StringHolder> entry = it.next();
+            assertEquals(key(i), entry.getKey());
+            assertEquals(value(i), entry.getValue());
+        }
+        assertFalse(it.hasNext());
+
+        it = tree.scanDescending(key(COUNT - 3), null);
+        assertEquals(key(COUNT - 1), it.next().getKey());
+        assertEquals(key(COUNT - 2), it.next().getKey());
+        assertEquals(key(COUNT - 3), it.next().getKey());
+        assertFalse(it.hasNext());
+
+        it = tree.scanDescending(null, key(2));
+        assertEquals(key(1), it.next().getKey());
+        assertEquals(key(0), it.next().getKey());
+        assertFalse(it.hasNext());
+
+        assertFalse(tree.scanDescending(key(300), key(300)).hasNext());
+        assertFalse(tree.scan(key(COUNT), null).hasNext());
+        tree.close();
+    }
+
+    public void testReadahead() throws Exception {
+        config.setReadaheadLeaves(16);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.close();
+
+        tree = openTree();
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scan(null, null);
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(key(count), it.next().getKey());
+            count++;
+        }
+        assertEquals(COUNT, count);
+        //预读是异步的, 等后台线程读过一些叶子
+        for (int i = 0; i < 500 && tree.getMetrics().snapshot().getCounter("readahead.pages") == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(tree.getMetrics().snapshot().getCounter("readahead.pages") > 0);
+        tree.close();
+    }
+
+    public void testReadaheadChannelStore() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(64);
+        testReadahead();
+    }
+
+    public void testBulkLoad() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        List<Map.Entry<StringHolder, StringHolder>> entries = new ArrayList<Map.Entry<StringHolder, StringHolder>>();
+        for (int i = 0; i < COUNT; i++) {
+            entries.add(new AbstractMap.SimpleEntry<StringHolder, StringHolder>(key(i), value(i)));
+        }
+        tree.bulkLoad(entries.iterator(), 0.8);
+        tree.close();
+
+        tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scan(null, null);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(key(i), it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+
+        //加载后的树仍然可以正常插入
+        tree.put(StringHolder.valueOf("k000100a"), value(-1));
+        assertEquals(value(-1), tree.getKey(StringHolder.valueOf("k000100a")));
+        tree.close();
+    }
+
+    /**
+     * 批量加载之后崩溃, 元数据不能指向没有落盘的节点
+     */
+    public void testBulkLoadRecovery() throws Exception {
+        config.setWalBatchSize(Integer.MAX_VALUE);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        List<Map.Entry<StringHolder, StringHolder>> entries = new ArrayList<Map.Entry<StringHolder, StringHolder>>();
+        for (int i = 0; i < COUNT; i++) {
+            entries.add(new AbstractMap.SimpleEntry<StringHolder, StringHolder>(key(i), value(i)));
+        }
+        crashed.bulkLoad(entries.iterator(), 0.8);
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertTrue(tree.verify(2).isOk());
+        tree.close();
+    }
+
+    public void testRecovery() throws Exception {
+        config.setWalBatchSize(Integer.MAX_VALUE);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        putShuffled(crashed, COUNT);
+        crashed.commit();
+        //没有提交的修改在恢复后不可见
+        crashed.put(key(COUNT), value(COUNT));
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertNull(tree.getKey(key(COUNT)));
+        tree.close();
+    }
+
+    /**
+     * 干净关闭 -> 重新打开 -> 提交 -> 崩溃, 重新打开时要重放日志而不是把它当作干净关闭后的残留清空
+     */
+    public void testRecoveryAfterCleanReopen() throws Exception {
+        checkRecoveryAfterCleanReopen();
+    }
+
+    public void testRecoveryAfterCleanReopenChannelStore() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(1024);
+        checkRecoveryAfterCleanReopen();
+    }
+
+    public void testRecoveryAfterCleanReopenPageCompression() throws Exception {
+        config.setPageCompression(true);
+        checkRecoveryAfterCleanReopen();
+    }
+
+    private void checkRecoveryAfterCleanReopen() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        for (int i = 0; i < 100; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.close();
+
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        for (int i = 100; i < 2100; i++) {
+            crashed.put(key(i), value(i));
+        }
+        crashed.commit();
+
+        tree = openTree();
+        assertEquals(2100, tree.size());
+        for (int i = 0; i < 2100; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testAutoCheckpoint() throws Exception {
+        config.setWalBatchSize(16).setWalCheckpointSize(64 * 1024);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        final File walFile = new File(base.getPath() + ".wal");
+        for (int i = 0; i < COUNT; i++) {
+            crashed.put(key(i), value(i));
+            if (i % 100 == 99) {
+                crashed.commit();
+                //只调用 commit() 时日志也不会无限增长
+                assertTrue(walFile.length() < 256 * 1024);
+            }
+        }
+        crashed.commit();
+        assertTrue(crashed.getMetrics().snapshot().getCounter("wal.checkpoint") > 0);
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testSyncEachOp() throws Exception {
+        config.setWalBatchSize(Integer.MAX_VALUE).setDurability(BPlusTreeConfig.Durability.SYNC_EACH_OP);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        putShuffled(crashed, COUNT / 10);
+
+        //每个写操作返回时已经提交, 不需要 commit()
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT / 10, tree.size());
+        for (int i = 0; i < COUNT / 10; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testPeriodicFlush() throws Exception {
+        config.setWalBatchSize(Integer.MAX_VALUE)
+                .setDurability(BPlusTreeConfig.Durability.PERIODIC)
+                .setFlushInterval(20);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        putShuffled(crashed, COUNT);
+        //等待写入之后的一次后台提交
+        final long flushes = crashed.getMetrics().snapshot().getCounter("flush.periodic");
+        for (int i = 0; i < 500 && crashed.getMetrics().snapshot().getCounter("flush.periodic") == flushes; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(crashed.getMetrics().snapshot().getCounter("flush.periodic") > flushes);
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+        crashed.close();
+    }
+
+    public void testChannelStoreFlushRuns() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(1024).setWalEnabled(false);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.sync();
+        //新追加的块号是连续的, 写回时合并成少数几次写
+        MetricsSnapshot metrics = tree.getMetrics().snapshot();
+        assertTrue(metrics.getCounter("store.flush.runs") > 0);
+        assertTrue(metrics.getCounter("store.flush.runs") * 4 < metrics.getCounter("store.write"));
+        tree.close();
+
+        tree = openTree();
+        assertEquals(COUNT, tree.size());
+        assertEquals(value(COUNT - 1), tree.getKey(key(COUNT - 1)));
+        tree.close();
+    }
+
+    public void testLongKeys() throws Exception {
+        config.setMaxKeySize(0).setMaxValueSize(0);
+        BPlusTreeFile<LongHolder, IntHolder> tree = new BPlusTreeFile<LongHolder, IntHolder>(
+                base.getPath(), config, LongHolder.class, IntHolder.class);
+        tree.open();
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = -COUNT / 2; i < COUNT / 2; i++) {
+            list.add(i);
+        }
+        Collections.shuffle(list, new Random(42));
+        for (int i : list) {
+            tree.put(LongHolder.valueOf(i * 1000L), IntHolder.valueOf(i));
+        }
+        tree.close();
+
+        tree = new BPlusTreeFile<LongHolder, IntHolder>(base.getPath(), config, LongHolder.class, IntHolder.class);
+        tree.open();
+        assertEquals(COUNT, tree.size());
+        assertEquals(IntHolder.valueOf(-7), tree.getKey(LongHolder.valueOf(-7000L)));
+        assertNull(tree.getKey(LongHolder.valueOf(-6999L)));
+        Iterator<Map.Entry<LongHolder, IntHolder>> it = tree.scan(null, null);
+        for (int i = -COUNT / 2; i < COUNT / 2; i++) {
+            Map.Entry<LongHolder, IntHolder> entry = it.next();
+            assertEquals(LongHolder.valueOf(i * 1000L), entry.getKey());
+            assertEquals(IntHolder.valueOf(i), entry.getValue());
+        }
+        assertFalse(it.hasNext());
+        assertTrue(tree.remove(LongHolder.valueOf(0)));
+        assertNull(tree.getKey(LongHolder.valueOf(0)));
+        tree.close();
+    }
+
+    public void testInPageSearch() throws Exception {
+        config.setInPageSearch(true);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.close();
+
+        tree = openTree();
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertNull(tree.getKey(StringHolder.valueOf("k000100a")));
+        assertNull(tree.getKey(StringHolder.valueOf("a")));
+        assertNull(tree.getKey(StringHolder.valueOf("z")));
+        tree.close();
+
+        //按字节比较的结果与 String.compareTo 一致, 包括多字节字符和代理对
+        String[] strings = {"", "a", "ab", "b", "\u00e9", "\u4e2d", "\ud83d\ude00", "\uffff", "a\u4e2d"};
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        for (String stored : strings) {
+            buf.clear();
+            StringHolder.valueOf(stored).serialize(buf);
+            for (String s : strings) {
+                assertEquals(s + " vs " + stored, Integer.signum(s.compareTo(stored)),
+                        Integer.signum(StringHolder.valueOf(s).compareToSerialized(buf, 0)));
+            }
+        }
+    }
+
+    public void testCompact() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        final long before = tree.getHighestNodePointer();
+
+        //把前 100 个叶子移动到文件末尾, 在前面留下空洞
+        tree.lock.writeLock().lock();
+        try {
+            long pointer = tree.headPointer;
+            List<Long> holes = new ArrayList<Long>();
+            for (int i = 0; i < 100; i++) {
+                LeafNode<StringHolder, StringHolder> leaf = (LeafNode<StringHolder, StringHolder>) tree.getNode(pointer);
+                pointer = leaf.rightPointer;
+                holes.add(leaf.pointer);
+                assertTrue(tree.relocateNode(leaf, tree.allocNode(true)));
+            }
+            for (long old : holes) {
+                LeafNode<StringHolder, StringHolder> hole = tree.createLeafNode();
+                hole.pointer = old;
+                tree.freeNode(hole);
+            }
+            tree.releaseNodes();
+        } finally {
+            tree.lock.writeLock().unlock();
+        }
+        assertEquals(before + 100, tree.getHighestNodePointer());
+        final File data = new File(base.getPath() + ".data");
+        final long grownLength = data.length();
+
+        int moved;
+        int total = 0;
+        while ((moved = tree.compact(16)) > 0) {
+            assertTrue(moved <= 16);
+            total += moved;
+        }
+        assertEquals(100, total);
+        assertEquals(before, tree.getHighestNodePointer());
+        assertTrue(tree.verify(2).isOk());
+        if (config.getStoreType() == BPlusTreeConfig.StoreType.CHANNEL) {
+            assertEquals((before + 1) * 512L, data.length());
+        } else {
+            //mmap 的文件按整段截断, 只保留末尾节点所在的段
+            final long segment = config.getSegmentSize();
+            assertEquals(((before + 1) * 512L + segment - 1) / segment * segment, data.length());
+            assertTrue(data.length() <= grownLength);
+        }
+        tree.close();
+
+        tree = openTree();
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scan(null, null);
+        for (int i = 0; i < COUNT; i++) {
+            Map.Entry<StringHolder, StringHolder> entry = it.next();
+            assertEquals(key(i), entry.getKey());
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        assertFalse(it.hasNext());
+        it = tree.scanDescending(null, null);
+        for (int i = COUNT - 1; i >= 0; i--) {
+            assertEquals(key(i), it.next().getKey());
+        }
+        tree.close();
+    }
+
+    public void testCompactChannelStore() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(16);
+        testCompact();
+    }
+
+    /**
+     * 每段只有 8 个块, 移走的 100 个节点跨过多个段, 压缩后 mmap 的文件要缩短若干整段
+     */
+    public void testCompactSmallSegments() throws Exception {
+        config.setSegmentSize(4096);
+        testCompact();
+        //移到末尾的 100 个节点占了十几个段, 压缩之后这些段都被截掉
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        final long highest = tree.getHighestNodePointer();
+        tree.close();
+        assertTrue((highest + 100) * 512L - new File(base.getPath() + ".data").length() >= 4096 * 10);
+    }
+
+    public void testRemove() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        final int high = tree.getHigh();
+        final long blocks = tree.getHighestNodePointer();
+
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            list.add(i);
+        }
+        Collections.shuffle(list, new Random(7));
+        //删掉 90%, 剩下的仍然可以找到, 树变矮, 释放的块可以被复用
+        for (int i = 0; i < COUNT * 9 / 10; i++) {
+            assertTrue(tree.remove(key(list.get(i))));
+        }
+        assertFalse(tree.remove(key(list.get(0))));
+        assertEquals(COUNT / 10, tree.size());
+        assertTrue(tree.getHigh() < high);
+        for (int i = COUNT * 9 / 10; i < COUNT; i++) {
+            assertEquals(value(list.get(i)), tree.getKey(key(list.get(i))));
+        }
+        assertTrue(tree.compact(Integer.MAX_VALUE) > 0);
+        assertTrue(tree.getHighestNodePointer() < blocks / 2);
+        tree.close();
+
+        tree = openTree();
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = tree.scan(null, null);
+        StringHolder last = null;
+        int count = 0;
+        while (it.hasNext()) {
+            StringHolder key = it.next().getKey();
+            assertTrue(last == null || last.compareTo(key) < 0);
+            last = key;
+            count++;
+        }
+        assertEquals(COUNT / 10, count);
+
+        for (int i = COUNT * 9 / 10; i < COUNT; i++) {
+            assertTrue(tree.remove(key(list.get(i))));
+        }
+        assertEquals(0, tree.size());
+        assertEquals(1, tree.getHigh());
+        assertFalse(tree.scan(null, null).hasNext());
+
+        putShuffled(tree, COUNT);
+        assertTrue(tree.getHighestNodePointer() <= blocks);
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testBatch() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        //偶数一批插入, 奇数逐个插入, 批次之间交错
+        for (int start = 0; start < COUNT; start += 1000) {
+            TreeMap<StringHolder, StringHolder> batch = new TreeMap<StringHolder, StringHolder>(Collections.<StringHolder>reverseOrder());
+            for (int i = start; i < start + 1000; i += 2) {
+                batch.put(key(i), value(i));
+            }
+            tree.putAll(batch);
+        }
+        for (int i = 1; i < COUNT; i += 2) {
+            tree.put(key(i), value(i));
+        }
+        assertEquals(COUNT, tree.size());
+
+        List<StringHolder> keys = new ArrayList<StringHolder>();
+        for (int i = 0; i < COUNT * 2; i += 3) {
+            keys.add(key(i));
+        }
+        Collections.shuffle(keys, new Random(11));
+        Map<StringHolder, StringHolder> found = tree.getAll(keys);
+        StringHolder last = null;
+        int count = 0;
+        for (Map.Entry<StringHolder, StringHolder> entry : found.entrySet()) {
+            assertTrue(last == null || last.compareTo(entry.getKey()) < 0);
+            last = entry.getKey();
+            assertEquals(tree.getKey(last), entry.getValue());
+            count++;
+        }
+        assertEquals((COUNT + 2) / 3, count);
+        tree.close();
+
+        tree = openTree();
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testKeyCompression() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        final int plainHigh = tree.getHigh();
+        final long plainBlocks = tree.getHighestNodePointer();
+        tree.close();
+        tearDown();
+
+        config.setKeyCompression(true);
+        tree = openTree();
+        putShuffled(tree, COUNT);
+        //相邻 key 的公共前缀很长, 压缩后节点更少, 树更矮
+        assertTrue(tree.getHigh() < plainHigh);
+        assertTrue(tree.getHighestNodePointer() < plainBlocks / 2);
+        for (int i = 0; i < COUNT; i += 2) {
+            assertTrue(tree.remove(key(i)));
+        }
+        tree.close();
+
+        tree = openTree();
+        assertEquals(COUNT / 2, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(i % 2 == 0 ? null : value(i), tree.getKey(key(i)));
+        }
+        assertTrue(tree.verify(2).isOk());
+        tree.close();
+
+        config.setKeyCompression(false);
+        try {
+            openTree();
+            fail("opened a compressed file without keyCompression");
+        } catch (RuntimeException e) {
+            //期望的异常
+        }
+    }
+
+    public void testKeyCompressionPageSize() throws Exception {
+        config.setKeyCompression(true).setCacheSize(256);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        Random random = new Random(11);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1000; i++) {
+                int k = random.nextInt(COUNT);
+                if (tree.getKey(key(k)) == null) {
+                    tree.put(key(k), value(k));
+                } else {
+                    tree.remove(key(k));
+                }
+            }
+            //增量维护的页大小与重新计算的一致
+            checkPageSize(tree, tree.rootPointer);
+        }
+        assertTrue(tree.verify(1).isOk());
+        tree.close();
+    }
+
+    private static void checkPageSize(BPlusTreeFile<StringHolder, StringHolder> tree, long pointer) {
+        Node<StringHolder, StringHolder> node = tree.getNode(pointer);
+        ByteBuffer page = ByteBuffer.allocate(tree.getBlockSize());
+        node.serialize(page);
+        page.clear();
+        assertEquals(Node.deserialize(page, tree).pageSize(), node.pageSize());
+        if (!node.isLeaf()) {
+            InternalNode<StringHolder, StringHolder> internal = (InternalNode<StringHolder, StringHolder>) node;
+            for (int i = 0; i <= internal.allocated; i++) {
+                checkPageSize(tree, internal.childs[i]);
+            }
+        }
+    }
+
+    public void testPageCompression() throws Exception {
+        config.setStoreType(BPlusTreeConfig.StoreType.CHANNEL).setBufferPoolSize(16);
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.close();
+        final long plainSize = new File(base.getPath() + ".data").length();
+        tearDown();
+
+        config.setPageCompression(true);
+        tree = openTree();
+        putShuffled(tree, COUNT);
+        tree.close();
+        assertTrue(new File(base.getPath() + ".data").length() < plainSize / 2);
+
+        tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testPageCompressionRecovery() throws Exception {
+        config.setPageCompression(true).setWalBatchSize(Integer.MAX_VALUE);
+        //第一次落盘之前崩溃, 页转换表还是空的, 只能从日志恢复
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        putShuffled(crashed, COUNT);
+        crashed.commit();
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        for (int i = 0; i < COUNT; i += 2) {
+            assertTrue(tree.remove(key(i)));
+        }
+        tree.commit();
+
+        //落盘之后再崩溃
+        tree = openTree();
+        assertEquals(COUNT / 2, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(i % 2 == 0 ? null : value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testPageTableSaveFailure() throws Exception {
+        config.setPageCompression(true).setWalBatchSize(Integer.MAX_VALUE);
+        BPlusTreeFile<StringHolder, StringHolder> crashed = openTree();
+        putShuffled(crashed, COUNT);
+        crashed.commit();
+        //占住页转换表的临时文件名, 让写入失败
+        final File blocker = new File(base.getPath() + ".ptt.tmp");
+        assertTrue(blocker.mkdir());
+        try {
+            crashed.sync();
+            fail("sync should fail when the page table cannot be saved");
+        } catch (RuntimeException expected) {
+            //页转换表没有写入, 日志不能被清空
+            assertTrue(new File(base.getPath() + ".wal").length() > 0);
+        } finally {
+            blocker.delete();
+        }
+
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        assertEquals(COUNT, tree.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), tree.getKey(key(i)));
+        }
+        tree.close();
+    }
+
+    public void testChecksum() throws Exception {
+        BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        for (int i = 0; i < COUNT; i += 3) {
+            tree.remove(key(i));
+        }
+        VerifyReport report = tree.verify(4);
+        assertTrue(report.toString(), report.isOk());
+        assertTrue(report.getScannedBlocks() > 0);
+        tree.close();
+
+        //改掉一个叶子节点页中的一个字节
+        final int blockSize = config.getBlockSize();
+        long corrupted = 0;
+        RandomAccessFile file = new RandomAccessFile(base.getPath() + ".data", "rw");
+        try {
+            for (long i = 2; i < file.length() / blockSize && corrupted == 0; i++) {
+                file.seek(i * blockSize);
+                final long pointer = file.readLong();
+                file.seek(i * blockSize + BPlusTree.FLAGS_OFFSET);
+                if (pointer == i && (file.readInt() & BPlusTree.LEAF_FLAG) != 0) {
+                    file.seek(i * blockSize + 100);
+                    final int b = file.read();
+                    file.seek(i * blockSize + 100);
+                    file.write(b ^ 0x10);
+                    corrupted = i;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        assertTrue(corrupted > 0);
+
+        tree = openTree();
+        report = tree.verify(3);
+        assertFalse(report.isOk());
+        assertEquals(Collections.singletonList(corrupted), report.getBrokenBlocks());
+        int failures = 0;
+        for (int i = 0; i < COUNT; i++) {
+            try {
+                tree.getKey(key(i));
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("block " + corrupted));
+                failures++;
+            }
+        }
+        assertTrue(failures > 0);
+        tree.close();
+    }
+
+    public void testSnapshot() throws Exception {
+        config.setSnapshotEnabled(true).setWalBatchSize(64);
+        final BPlusTreeFile<StringHolder, StringHolder> tree = openTree();
+        putShuffled(tree, COUNT);
+        final Snapshot<StringHolder, StringHolder> snapshot = tree.snapshot();
+        assertEquals(COUNT, snapshot.size());
+
+        //快照的读取与写操作同时进行
+        final Throwable[] failure = new Throwable[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 0; round < 3; round++) {
+                        Iterator<Map.Entry<StringHolder, StringHolder>> it = snapshot.scan(null, null);
+                        for (int i = 0; i < COUNT; i++) {
+                            Map.Entry<StringHolder, StringHolder> entry = it.next();
+                            assertEquals(key(i), entry.getKey());
+                            assertEquals(value(i), entry.getValue());
+                        }
+                        assertFalse(it.hasNext());
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < COUNT; i += 2) {
+            assertTrue(tree.remove(key(i)));
+        }
+        for (int i = 1; i < COUNT; i += 2) {
+            assertTrue(tree.remove(key(i)));
+            assertTrue(tree.put(key(i), value(-i)));
+        }
+        tree.compact(1000);
+        reader.join();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        final Snapshot<StringHolder, StringHolder> second = tree.snapshot();
+        assertTrue(second.getVersion() > snapshot.getVersion());
+        for (int i = 0; i < COUNT; i++) {
+            if (i % 2 == 0) {
+                assertTrue(tree.put(key(i), value(i)));
+            } else {
+                assertTrue(tree.remove(key(i)));
+            }
+        }
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(value(i), snapshot.getKey(key(i)));
+            assertEquals(i % 2 == 0 ? null : value(-i), second.getKey(key(i)));
+            assertEquals(i % 2 == 0 ? value(i) : null, tree.getKey(key(i)));
+        }
+        Iterator<Map.Entry<StringHolder, StringHolder>> it = second.scan(key(100), key(110));
+        for (int i = 101; i < 110; i += 2) {
+            assertEquals(key(i), it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+
+        snapshot.close();
+        assertEquals(value(-1), second.getKey(key(1)));
+        try {
+            snapshot.getKey(key(1));
+            fail("read a closed snapshot");
+        } catch (IllegalStateException e) {
+            //期望的异常
+        }
+        second.close();
+        assertFalse(new File(base.getPath() + ".snap").exists());
+        tree.close();
+    }
+}
@@ -0,0 +1,75 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.LongHolder;
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * BPlusTreeMemory 的读写测试
+ */
+public class BPlusTreeMemoryTest extends TestCase {
+
+    private BPlusTreeConfig config;
+
+    @Override
+    protected void setUp() throws Exception {
+        config = new BPlusTreeConfig()
+                .setBlockSize(512)
+                .setCacheSize(8)
+                .setSegmentSize(64 * 1024);
+    }
+
+    private void checkRandom(BPlusTreeMemory<LongHolder, LongHolder> tree, TreeMap<Long, Long> expected, int seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < 30000; i++) {
+            long key = random.nextInt(10000);
+            if (expected.containsKey(key)) {
+                assertTrue(tree.remove(LongHolder.valueOf(key)));
+                expected.remove(key);
+            } else {
+                assertTrue(tree.put(LongHolder.valueOf(key), LongHolder.valueOf(-key)));
+                expected.put(key, -key);
+            }
+        }
+        assertEquals(expected.size(), tree.size());
+        for (long key = 0; key < 10000; key++) {
+            LongHolder value = tree.getKey(LongHolder.valueOf(key));
+            assertEquals(expected.get(key), value == null ? null : value.getValue());
+        }
+        Iterator<Map.Entry<LongHolder, LongHolder>> it = tree.scan(null, null);
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getKey().longValue(), it.next().getKey().getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    public void testPutRemove() throws Exception {
+        BPlusTreeMemory<LongHolder, LongHolder> tree = new BPlusTreeMemory<LongHolder, LongHolder>(
+                config, LongHolder.class, LongHolder.class);
+        TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+        checkRandom(tree, expected, 7);
+        //释放的块被复用, 元素数差不多时页数基本不变
+        final long blocks = tree.getHighestNodePointer();
+        checkRandom(tree, expected, 8);
+        assertTrue(tree.getHighestNodePointer() <= blocks + blocks / 4);
+        assertTrue(tree.getAllocatedBytes() > 0);
+
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertNull(tree.getKey(LongHolder.valueOf(1)));
+        tree.close();
+        assertEquals(0, tree.getAllocatedBytes());
+    }
+
+    public void testInPageSearchAndKeyCompression() throws Exception {
+        checkRandom(new BPlusTreeMemory<LongHolder, LongHolder>(
+                config.setInPageSearch(true), LongHolder.class, LongHolder.class), new TreeMap<Long, Long>(), 7);
+        checkRandom(new BPlusTreeMemory<LongHolder, LongHolder>(
+                config.setInPageSearch(false).setKeyCompression(true), LongHolder.class, LongHolder.class),
+                new TreeMap<Long, Long>(), 7);
+    }
+}
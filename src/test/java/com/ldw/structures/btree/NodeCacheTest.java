@@ -0,0 +1,94 @@
+package com.ldw.structures.btree;
+
+import com.ldw.structures.holders.StringHolder;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * NodeCache 的淘汰及脏节点测试
+ */
+public class NodeCacheTest extends TestCase {
+
+    private BPlusTreeFile<StringHolder, StringHolder> tree;
+
+    @Override
+    protected void setUp() throws Exception {
+        //只用来创建节点, 不打开文件
+        File base = File.createTempFile("nodecache", "");
+        base.delete();
+        tree = new BPlusTreeFile<StringHolder, StringHolder>(base.getPath(), StringHolder.class, StringHolder.class);
+    }
+
+    private LeafNode<StringHolder, StringHolder> node(int pointer) {
+        LeafNode<StringHolder, StringHolder> node = tree.createLeafNode();
+        node.pointer = pointer;
+        return node;
+    }
+
+    public void testTrim() {
+        NodeCache<StringHolder, StringHolder> cache = new NodeCache<StringHolder, StringHolder>(4);
+        for (int i = 1; i <= 8; i++) {
+            cache.put(node(i));
+        }
+        assertEquals(8, cache.size());
+        cache.trim();
+        assertEquals(4, cache.size());
+
+        //淘汰之后访问过的节点在下一次淘汰时保留
+        int hot = 0;
+        for (int i = 1; i <= 8 && hot == 0; i++) {
+            if (cache.get(i) != null) {
+                hot = i;
+            }
+        }
+        cache.put(node(9));
+        cache.put(node(10));
+        cache.trim();
+        assertEquals(4, cache.size());
+        assertNotNull(cache.get(hot));
+    }
+
+    public void testDirtyNodesStay() {
+        NodeCache<StringHolder, StringHolder> cache = new NodeCache<StringHolder, StringHolder>(2);
+        for (int i = 1; i <= 5; i++) {
+            cache.markDirty(node(i));
+        }
+        //脏节点写回之前不会被淘汰
+        cache.trim();
+        assertEquals(5, cache.size());
+        assertTrue(cache.hasDirty());
+
+        assertEquals(5, cache.drainDirty().size());
+        assertFalse(cache.hasDirty());
+        cache.trim();
+        assertEquals(2, cache.size());
+    }
+
+    public void testDeletedNode() {
+        NodeCache<StringHolder, StringHolder> cache = new NodeCache<StringHolder, StringHolder>(4);
+        LeafNode<StringHolder, StringHolder> node = node(1);
+        cache.put(node);
+        node.delete();
+        cache.markDirty(node);
+        assertEquals(1, cache.drainDirty().size());
+        assertNull(cache.get(1));
+    }
+
+    public void testPutKeepsFirst() {
+        NodeCache<StringHolder, StringHolder> cache = new NodeCache<StringHolder, StringHolder>(4);
+        LeafNode<StringHolder, StringHolder> first = node(1);
+        assertSame(first, cache.put(first));
+        //并发加载同一个节点时以先放入的为准
+        assertSame(first, cache.put(node(1)));
+        assertSame(first, cache.get(1));
+    }
+
+    public void testZeroCapacity() {
+        NodeCache<StringHolder, StringHolder> cache = new NodeCache<StringHolder, StringHolder>(0);
+        LeafNode<StringHolder, StringHolder> node = node(1);
+        assertSame(node, cache.put(node));
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1));
+    }
+}
@@ -0,0 +1,61 @@
+package com.ldw.structures.metrics;
+
+import junit.framework.TestCase;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ * 计数器, 直方图分位数及 JMX 属性的测试
+ */
+public class MetricsRegistryTest extends TestCase {
+
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1000, snapshot.getMax());
+        //分位数按桶上界估算, 误差在 2 倍以内
+        assertTrue(snapshot.getPercentile(0.5) >= 500 && snapshot.getPercentile(0.5) < 1000);
+        assertEquals(1000, snapshot.getPercentile(0.99));
+        assertEquals(1000, snapshot.getPercentile(1));
+    }
+
+    public void testSameName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("a").inc();
+        registry.counter("a").add(2);
+        assertSame(registry.histogram("h"), registry.histogram("h"));
+        assertEquals(3, registry.snapshot().getCounter("a"));
+        assertEquals(0, registry.snapshot().getCounter("missing"));
+    }
+
+    public void testMBean() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("tree.put").add(7);
+        registry.histogram("store.sync.nanos").record(100);
+        registry.gauge("tree.height", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return 3;
+            }
+        });
+        registry.registerMBean("com.ldw.structures:type=Test,name=metrics");
+        ObjectName name = registry.getRegisteredName();
+        try {
+            assertEquals(7L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "tree.put"));
+            assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "tree.height"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "store.sync.nanos.count"));
+            assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "store.sync.nanos.max"));
+        } finally {
+            registry.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,135 @@
+package com.ldw.structures.store;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ChannelBlockStore 的缓冲池测试
+ */
+public class ChannelBlockStoreTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("channel-store", ".data");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testPoolTooLarge() {
+        try {
+            new ChannelBlockStore(file, 4096, 1 << 20);
+            fail("pool of 4 GiB should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testTruncateInvalidatesPinnedFrames() {
+        ChannelBlockStore store = new ChannelBlockStore(file, BLOCK_SIZE, 8);
+        assertTrue(store.open());
+        for (int i = 0; i < 4; i++) {
+            fill(store, i, i + 1);
+        }
+        store.sync();
+
+        ByteBuffer pinned = store.get(3);
+        WriteBuffer writer = store.set(2);
+        store.truncate(2);
+        assertEquals(2, store.sizeInBlocks());
+        //截断前拿到的块不能再写回
+        assertFalse(writer.save());
+        store.release(pinned);
+
+        //截掉的块重新读出来是 0, 而不是池中的旧内容
+        assertEquals(0, value(store, 2));
+        assertEquals(0, value(store, 3));
+        assertEquals(1, value(store, 0));
+        store.close();
+    }
+
+    public void testConcurrentMisses() throws Exception {
+        final int blocks = 256;
+        final ChannelBlockStore store = new ChannelBlockStore(file, BLOCK_SIZE, 16);
+        assertTrue(store.open());
+        for (int i = 0; i < blocks; i++) {
+            fill(store, i, i + 1);
+        }
+        store.sync();
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final long seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int n = 0; n < 5000; n++) {
+                            int index = random.nextInt(blocks);
+                            assertEquals(index + 1, value(store, index));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        //写线程同时改写前 16 块, 让锁外读到的内容有机会过时
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int n = 0; n < 2000; n++) {
+                        int index = n % 16;
+                        fill(store, index, index + 1);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        store.close();
+    }
+
+    private static void fill(BlockStore store, long index, int value) {
+        WriteBuffer writer = store.set(index);
+        ByteBuffer buf = writer.buf();
+        while (buf.remaining() >= 4) {
+            buf.putInt(value);
+        }
+        assertTrue(writer.save());
+    }
+
+    private static int value(BlockStore store, long index) {
+        ByteBuffer buf = store.get(index);
+        try {
+            int value = buf.getInt(0);
+            assertEquals(value, buf.getInt(BLOCK_SIZE - 4));
+            return value;
+        } finally {
+            store.release(buf);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.ldw.structures.store;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FreeSpaceMap 的申请/释放及位图页读写测试
+ */
+public class FreeSpaceMapTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 512;
+
+    public void testAllocateNear() {
+        FreeSpaceMap map = new FreeSpaceMap(BLOCK_SIZE);
+        assertEquals(-1, map.allocate(0));
+
+        map.free(10);
+        map.free(5000);
+        map.free(9000);
+        assertEquals(3, map.getFreeCount());
+        //优先选择提示位置之后最近的空闲块, 之后没有时从头找
+        assertEquals(5000, map.allocate(4100));
+        assertEquals(10, map.allocate(9001));
+        assertEquals(9000, map.allocate(0));
+        assertEquals(-1, map.allocate(0));
+        assertEquals(0, map.getFreeCount());
+    }
+
+    public void testSaveAndLoad() {
+        FreeSpaceMap map = new FreeSpaceMap(BLOCK_SIZE);
+        int groupSize = BLOCK_SIZE * 8;
+        assertEquals(1, map.mapBlock(0));
+        assertTrue(map.isMapBlock(groupSize));
+        assertFalse(map.isMapBlock(groupSize + 1));
+        assertEquals(1, map.groupOf(groupSize + 7));
+
+        map.free(7);
+        map.free(groupSize + 7);
+        int[] dirty = map.drainDirty();
+        assertEquals(2, dirty.length);
+        assertFalse(map.hasDirty());
+
+        ByteBuffer page = ByteBuffer.allocate(BLOCK_SIZE);
+        FreeSpaceMap loaded = new FreeSpaceMap(BLOCK_SIZE);
+        for (int group : dirty) {
+            map.save(group, page);
+            loaded.load(group, page);
+        }
+        assertEquals(2, loaded.getFreeCount());
+        assertTrue(loaded.isFree(7));
+        assertTrue(loaded.isFree(groupSize + 7));
+        assertFalse(loaded.isFree(8));
+        assertEquals(groupSize + 7, loaded.allocate(8));
+    }
+}
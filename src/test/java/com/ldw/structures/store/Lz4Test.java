@@ -0,0 +1,58 @@
+package com.ldw.structures.store;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lz4 压缩解压往返测试
+ */
+public class Lz4Test extends TestCase {
+
+    private final int[] table = new int[1 << Lz4.HASH_LOG];
+
+    private byte[] roundTrip(byte[] src) {
+        byte[] dst = new byte[src.length + src.length / 255 + 16];
+        int length = Lz4.compress(src, src.length, dst, table);
+        assertTrue(length > 0);
+        byte[] back = new byte[src.length];
+        Lz4.decompress(dst, 0, length, back, src.length);
+        assertTrue(Arrays.equals(src, back));
+        return Arrays.copyOf(dst, length);
+    }
+
+    public void testRoundTrip() {
+        Random random = new Random(1);
+        for (int n = 0; n < 3000; n += 7) {
+            byte[] noise = new byte[n];
+            random.nextBytes(noise);
+            roundTrip(noise);
+
+            byte[] repeated = new byte[n];
+            for (int i = 0; i < n; i++) {
+                repeated[i] = (byte) (i % 13 == 0 ? random.nextInt(4) : i % 5);
+            }
+            roundTrip(repeated);
+        }
+        //全 0 的页压缩到很小
+        assertTrue(roundTrip(new byte[4096]).length < 40);
+    }
+
+    public void testSmallDestination() {
+        byte[] noise = new byte[1000];
+        new Random(2).nextBytes(noise);
+        assertEquals(-1, Lz4.compress(noise, noise.length, new byte[900], table));
+    }
+
+    public void testCorrupted() {
+        byte[] compressed = roundTrip(new byte[1024]);
+        try {
+            //截断的数据解压不出完整的页
+            Lz4.decompress(compressed, 0, compressed.length - 1, new byte[1024], 1024);
+            fail();
+        } catch (IllegalStateException e) {
+            //期望的异常
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.ldw.structures.store;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SnapshotBlockStore 的快照读取测试
+ */
+public class SnapshotBlockStoreTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static void fill(BlockStore store, long index, int value) {
+        WriteBuffer wbuf = store.set(index);
+        wbuf.buf().putInt(0, value);
+        assertTrue(wbuf.save());
+    }
+
+    public void testReadRacingTruncate() throws Exception {
+        final SnapshotBlockStore[] snapshots = new SnapshotBlockStore[1];
+        final boolean[] armed = new boolean[1];
+        //乐观读取时文件被截断: 模拟读已截掉的映射区域得到的 SIGBUS
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, SEGMENT_SIZE) {
+            @Override
+            public ByteBuffer get(long index) {
+                if (armed[0]) {
+                    armed[0] = false;
+                    Thread truncate = new Thread() {
+                        @Override
+                        public void run() {
+                            snapshots[0].truncate(2);
+                        }
+                    };
+                    truncate.start();
+                    try {
+                        truncate.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw new InternalError("a fault occurred in an unsafe memory access operation");
+                }
+                return super.get(index);
+            }
+        };
+        SnapshotBlockStore snapshot = new SnapshotBlockStore(store, new MemoryBlockStore(BLOCK_SIZE, SEGMENT_SIZE));
+        snapshots[0] = snapshot;
+        assertTrue(snapshot.open());
+        for (int i = 0; i < 4; i++) {
+            fill(snapshot, i, i + 1);
+        }
+
+        SnapshotBlockStore.View view = snapshot.pin(4);
+        armed[0] = true;
+        //截断后重读, 读到的是截断前保存的副本
+        assertEquals(4, view.read(3).getInt(0));
+        assertFalse(armed[0]);
+        assertEquals(2, snapshot.sizeInBlocks());
+        view.close();
+        snapshot.close();
+    }
+
+    public void testFaultWithoutWriteIsReported() {
+        MemoryBlockStore store = new MemoryBlockStore(BLOCK_SIZE, SEGMENT_SIZE) {
+            @Override
+            public ByteBuffer get(long index) {
+                throw new InternalError("fault");
+            }
+        };
+        SnapshotBlockStore snapshot = new SnapshotBlockStore(store, new MemoryBlockStore(BLOCK_SIZE, SEGMENT_SIZE));
+        assertTrue(snapshot.open());
+        SnapshotBlockStore.View view = snapshot.pin(1);
+        try {
+            view.read(0);
+            fail("fault without a concurrent write should not be swallowed");
+        } catch (InternalError expected) {
+        }
+        view.close();
+        snapshot.close();
+    }
+}